@@ -0,0 +1,106 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package org.acaro.sketches;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.acaro.sketches.io.OperationIterator;
+import org.acaro.sketches.operation.Delete;
+import org.acaro.sketches.operation.Operation;
+import org.acaro.sketches.sfile.FSSFileCursor;
+
+/**
+ * Iterates over a range of keys in order, returned by Sketches.scan(). The Memstore,
+ * the RAMSFiles and the SFiles are merged on the fly: the youngest version of each 
+ * key wins and deleted keys are skipped. Only a window of each SFile is held in
+ * memory.
+ * 
+ * The Scanner holds on to the readers it was opened on, so it must be closed. Writes
+ * made after it was opened may or may not be seen.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class Scanner 
+implements Closeable {
+
+	private final FSSFileCursor cursor;
+	private final Closeable snapshot;
+	private Operation next;
+	private boolean closed = false;
+	
+	/*
+	 * The iterators must be sorted by age, youngest first. The snapshot is closed 
+	 * together with the Scanner.
+	 */
+	Scanner(List<OperationIterator> iterators, Closeable snapshot) 
+	throws IOException {
+		
+		this.cursor   = new FSSFileCursor(iterators);
+		this.snapshot = snapshot;
+		fetch();
+	}
+	
+	public boolean hasNext() {
+		return next != null;
+	}
+	
+	/**
+	 * @return the next key and its value
+	 */
+	public Operation next() 
+	throws IOException {
+		
+		if (!hasNext()) throw new NoSuchElementException();
+		
+		Operation o = next;
+		fetch();
+		
+		return o;
+	}
+	
+	public void close() 
+	throws IOException {
+		
+		if (closed)
+			return;
+		
+		closed = true;
+		next   = null;
+		try {
+			cursor.close();
+		} finally {
+			snapshot.close();
+		}
+	}
+	
+	private void fetch() 
+	throws IOException {
+		
+		next = null;
+		while (!closed && cursor.hasNext()) {
+			Operation o = cursor.next();
+			if (!(o instanceof Delete)) {
+				next = o;
+				break;
+			}
+		}
+	}
+}
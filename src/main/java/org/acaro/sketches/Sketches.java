@@ -19,19 +19,37 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
-import org.acaro.sketches.io.OperationMutator;
+import org.acaro.sketches.compaction.Compaction;
+import org.acaro.sketches.compaction.CompactionStrategy;
+import org.acaro.sketches.compaction.CompactionStrategyFactory;
+import org.acaro.sketches.io.OperationIterator;
 import org.acaro.sketches.io.OperationReader;
+import org.acaro.sketches.io.RateLimiter;
 import org.acaro.sketches.io.Writable;
+import org.acaro.sketches.logfiles.Durability;
 import org.acaro.sketches.logfiles.Logfile;
 import org.acaro.sketches.logfiles.state.NewCompactedSFile;
 import org.acaro.sketches.logfiles.state.NewLogfile;
@@ -39,7 +57,10 @@ import org.acaro.sketches.logfiles.state.NewScribedSFile;
 import org.acaro.sketches.logfiles.state.StateLog;
 import org.acaro.sketches.logfiles.state.StateLog.StateLogReader;
 import org.acaro.sketches.memstore.Memstore;
+import org.acaro.sketches.memstore.Memstore.FlushListener;
+import org.acaro.sketches.operation.Delete;
 import org.acaro.sketches.operation.Operation;
+import org.acaro.sketches.operation.OperationBatch;
 import org.acaro.sketches.operation.Update;
 import org.acaro.sketches.sfile.FSSFile;
 import org.acaro.sketches.sfile.RAMSFile;
@@ -47,16 +68,34 @@ import org.acaro.sketches.sfile.SFile;
 import org.acaro.sketches.utils.Configuration;
 import org.acaro.sketches.utils.FilenamesFactory;
 import org.acaro.sketches.utils.OperationReaders;
+import org.acaro.sketches.utils.RowCache;
 import org.acaro.sketches.utils.SketchesHelper;
+import org.acaro.sketches.utils.WriteController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 /**
  * 
  * The class is the entry point to the KV store.
  * 
  * Important: Both the key and the value should be immutable. 
  * We are not going to change them, we expect you to do the same.
+ * 
+ * The API doesn't lock: every call pins the current snapshot of OperationReaders
+ * and works on it. Scriber and Compactor publish new snapshots, and the readers
+ * they replace are closed once nobody uses the old snapshots anymore.
+ * 
+ * The async calls return a ListenableFuture instead of blocking. Writes are applied
+ * right away and their future is done when the log reaches the Durability, reads
+ * run on a pool of sketches.async.iothreads threads (default: 16), to be sized on 
+ * the parallelism of the storage device.
 
  * @author Claudio Martella
  *
@@ -67,9 +106,21 @@ public class Sketches {
 	private static final Logger logger = LoggerFactory.getLogger(Sketches.class);
 	private final SketchesState state  = new SketchesState();
 	private final Configuration conf   = Configuration.getConf();
+	// null if disabled
+	private final RowCache rowCache    = RowCache.create(conf);
+	private final CompactionStrategy compactionStrategy = CompactionStrategyFactory.createStrategy(conf);
 
 	private final ScheduledExecutorService scheduledExecutor = Executors.newScheduledThreadPool(2);
 	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final ListeningExecutorService ioExecutor = MoreExecutors.listeningDecorator(
+			Executors.newFixedThreadPool(conf.getInt("sketches.async.iothreads", 16)));
+	// the stopped async writes run on the ioExecutor
+	private final WriteController writeController = new WriteController(conf, ioExecutor);
+	// merges the key ranges of a compaction in parallel
+	private final int compactionThreads = Math.max(conf.getInt("sketches.compaction.threads", 
+			Runtime.getRuntime().availableProcessors()), 1);
+	private final ExecutorService compactionExecutor = Executors.newFixedThreadPool(compactionThreads);
+	private final ScribeTrigger scribeTrigger = new ScribeTrigger();
 	
 	// directory where we store our files.
 	private final String path;
@@ -90,7 +141,23 @@ public class Sketches {
 		checkNotNull(value);
 		checkArgument(key.length <= Short.MAX_VALUE);
 
-		doPut(key, new Update(key, value));
+		doPut(key, new Update(key, value), null);
+	}
+
+	/*
+	 * Returns only once the write has reached the requested durability. Concurrent
+	 * callers share the cost of flushing and syncing the log.
+	 */
+	public void put(byte[] key, byte[] value, Durability durability) 
+	throws IOException {
+
+		checkState(!state.isShutdown());
+		checkNotNull(key);
+		checkNotNull(value);
+		checkNotNull(durability);
+		checkArgument(key.length <= Short.MAX_VALUE);
+
+		doPut(key, new Update(key, value), durability);
 	}
 
 	public byte[] get(byte[] key) 
@@ -109,6 +176,73 @@ public class Sketches {
 		return value;
 	}
 
+	/*
+	 * Applies all the writes of the batch with a single log record.
+	 */
+	public void write(WriteBatch batch) 
+	throws IOException {
+		
+		checkState(!state.isShutdown());
+		checkNotNull(batch);
+		
+		doWrite(batch, null);
+	}
+	
+	public void write(WriteBatch batch, Durability durability) 
+	throws IOException {
+		
+		checkState(!state.isShutdown());
+		checkNotNull(batch);
+		checkNotNull(durability);
+		
+		doWrite(batch, durability);
+	}
+	
+	/*
+	 * Like write(), but the future is done when the batch has reached the Memstore's 
+	 * default Durability, like putAsync().
+	 */
+	public ListenableFuture<Void> writeAsync(WriteBatch batch) {
+		
+		checkState(!state.isShutdown());
+		checkNotNull(batch);
+		
+		return doAsync(batch.getOperations(), null);
+	}
+	
+	public ListenableFuture<Void> writeAsync(WriteBatch batch, Durability durability) {
+		
+		checkState(!state.isShutdown());
+		checkNotNull(batch);
+		checkNotNull(durability);
+		
+		return doAsync(batch.getOperations(), durability);
+	}
+
+	/*
+	 * Looks up all the keys at once. The values come in the order of the keys, null 
+	 * for the missing ones. With sketches.multiget.parallel (default: false) the SFiles
+	 * are searched in parallel.
+	 */
+	public List<byte[]> multiGet(List<byte[]> keys) 
+	throws IOException {
+		
+		checkState(!state.isShutdown());
+		checkNotNull(keys);
+		for (byte[] key: keys) {
+			checkNotNull(key);
+			checkArgument(key.length <= Short.MAX_VALUE);
+		}
+		
+		Operation[] found = doMultiGet(keys.toArray(new byte[keys.size()][]));
+		
+		List<byte[]> values = new ArrayList<byte[]>(found.length);
+		for (Operation o: found)
+			values.add(o != null ? o.getValue() : null);
+		
+		return values;
+	}
+
 	public void delete(byte[] key) 
 	throws IOException {
 
@@ -116,69 +250,463 @@ public class Sketches {
 		checkNotNull(key);
 		checkArgument(key.length <= Short.MAX_VALUE);
 
-		doDelete(key);
+		doDelete(key, null);
+	}
+
+	public void delete(byte[] key, Durability durability) 
+	throws IOException {
+
+		checkState(!state.isShutdown());
+		checkNotNull(key);
+		checkNotNull(durability);
+		checkArgument(key.length <= Short.MAX_VALUE);
+
+		doDelete(key, durability);
+	}
+
+	/*
+	 * The keys with startKey <= key < endKey, in order. A null bound means unbounded.
+	 * The Scanner must be closed.
+	 */
+	public Scanner scan(byte[] startKey, byte[] endKey) 
+	throws IOException {
+		
+		checkState(!state.isShutdown());
+		checkArgument(startKey == null || endKey == null 
+				|| UnsignedBytes.lexicographicalComparator().compare(startKey, endKey) <= 0);
+		
+		return doScan(startKey, endKey);
+	}
+
+	public ListenableFuture<byte[]> getAsync(final byte[] key) {
+
+		checkState(!state.isShutdown());
+		checkNotNull(key);
+		checkArgument(key.length <= Short.MAX_VALUE);
+
+		return ioExecutor.submit(new Callable<byte[]>() {
+			public byte[] call() 
+			throws IOException {
+				
+				Operation o = doGet(key);
+				
+				return o != null ? o.getValue() : null;
+			}
+		});
+	}
+
+	public ListenableFuture<List<byte[]>> multiGetAsync(final List<byte[]> keys) {
+
+		checkState(!state.isShutdown());
+		checkNotNull(keys);
+		for (byte[] key: keys) {
+			checkNotNull(key);
+			checkArgument(key.length <= Short.MAX_VALUE);
+		}
+
+		final byte[][] array = keys.toArray(new byte[keys.size()][]);
+		
+		return ioExecutor.submit(new Callable<List<byte[]>>() {
+			public List<byte[]> call() 
+			throws IOException {
+				
+				Operation[] found = doMultiGet(array);
+
+				List<byte[]> values = new ArrayList<byte[]>(found.length);
+				for (Operation o: found)
+					values.add(o != null ? o.getValue() : null);
+
+				return values;
+			}
+		});
+	}
+
+	/*
+	 * The value is visible to get() right away, unless the writes are stopped and it's
+	 * queued (see WriteController). The future is done when the write has reached the 
+	 * Memstore's default Durability.
+	 */
+	public ListenableFuture<Void> putAsync(byte[] key, byte[] value) {
+
+		checkState(!state.isShutdown());
+		checkNotNull(key);
+		checkNotNull(value);
+		checkArgument(key.length <= Short.MAX_VALUE);
+
+		return doAsync(new Update(key, value), null);
+	}
+
+	public ListenableFuture<Void> putAsync(byte[] key, byte[] value, Durability durability) {
+
+		checkState(!state.isShutdown());
+		checkNotNull(key);
+		checkNotNull(value);
+		checkNotNull(durability);
+		checkArgument(key.length <= Short.MAX_VALUE);
+
+		return doAsync(new Update(key, value), durability);
+	}
+
+	public ListenableFuture<Void> deleteAsync(byte[] key) {
+
+		checkState(!state.isShutdown());
+		checkNotNull(key);
+		checkArgument(key.length <= Short.MAX_VALUE);
+
+		return doAsync(new Delete(key), null);
+	}
+
+	public ListenableFuture<Void> deleteAsync(byte[] key, Durability durability) {
+
+		checkState(!state.isShutdown());
+		checkNotNull(key);
+		checkNotNull(durability);
+		checkArgument(key.length <= Short.MAX_VALUE);
+
+		return doAsync(new Delete(key), durability);
+	}
+
+	/**
+	 * @return the flow control of the writes, for its stall state and counters
+	 */
+	public WriteController getWriteController() {
+		return this.writeController;
 	}
 
 	public void shutdown() 
 	throws IOException {
 
 		/*
-		 * Stop the API. Acquiring writeLock should guarantee that all user
-		 * paths to API that were already down the road should have returned.
+		 * Stop the API. Calls that were already down the road hold a pin on the
+		 * snapshot, state.shutdown() waits for them to return.
 		 */
 		checkState(!state.setShutdown());
-		state.writeLock.lock();
-		state.writeLock.unlock();
+		writeController.release();
+		scribeTrigger.stop();
 		
 		// Stop the machinery. This could let us wait for a while...
 		scheduledExecutor.shutdown();
 		executor.shutdown();
+		compactionExecutor.shutdown();
+		ioExecutor.shutdown();
+		try {
+			// let the reads already submitted complete
+			ioExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 				
 		// freeze state
 		state.shutdown();
 	}
 
+	/*
+	 * The Memstore and the RAMSFiles are always asked first, the RowCache stands 
+	 * for the SFiles on disk. The Scribers publish their SFiles in the order the 
+	 * Memstores were swapped, so the RAMSFiles are always younger than the SFiles.
+	 */
 	private Operation doGet(byte[] key) 
 	throws IOException {
 		
-		state.readLock.lock();
+		long epoch = rowCache != null ? rowCache.getEpoch() : 0;
+		OperationReaders readers = state.pin();
 		try {
 			
 			Operation o = null;
-			for (OperationReader reader: state.getReaders())
+			for (OperationReader reader: readers.getMemoryReaders())
+				if ((o = reader.get(key)) != null)
+					return o;
+			
+			if (rowCache != null && (o = rowCache.get(key)) != null)
+				return o;
+			
+			for (OperationReader reader: readers.getFileReaders())
 				if ((o = reader.get(key)) != null)
 					break;
 
+			if (o != null && rowCache != null)
+				rowCache.put(o, epoch);
+			
 			return o;
 			
 		} finally {
-			state.readLock.unlock();
+			state.unpin(readers);
+		}
+	}
+
+	/*
+	 * Same order as doGet(), each reader is asked for all the keys that are still missing.
+	 */
+	private Operation[] doMultiGet(byte[][] keys) 
+	throws IOException {
+		
+		Operation[] results = new Operation[keys.length];
+		
+		long epoch = rowCache != null ? rowCache.getEpoch() : 0;
+		OperationReaders readers = state.pin();
+		try {
+			
+			for (OperationReader reader: readers.getMemoryReaders())
+				for (int i = 0; i < keys.length; i++)
+					if (results[i] == null)
+						results[i] = reader.get(keys[i]);
+			
+			if (rowCache != null)
+				for (int i = 0; i < keys.length; i++)
+					if (results[i] == null)
+						results[i] = rowCache.get(keys[i]);
+			
+			Operation[] fromMemory = results.clone();
+			OperationReader[] files = readers.getFileReaders();
+			
+			if (conf.getBoolean("sketches.multiget.parallel", false) && files.length > 1)
+				getInParallel(files, keys, results);
+			else
+				for (OperationReader reader: files)
+					SketchesHelper.get(reader, keys, results);
+			
+			if (rowCache != null)
+				for (int i = 0; i < keys.length; i++)
+					if (fromMemory[i] == null && results[i] != null)
+						rowCache.put(results[i], epoch);
+			
+			return results;
+			
+		} finally {
+			state.unpin(readers);
+		}
+	}
+	
+	/*
+	 * Every SFile is searched for the keys that are still missing, and the youngest
+	 * version found wins.
+	 */
+	private void getInParallel(OperationReader[] files, final byte[][] keys, final Operation[] results) 
+	throws IOException {
+		
+		List<Future<Operation[]>> futures = new ArrayList<Future<Operation[]>>(files.length);
+		for (final OperationReader reader: files)
+			futures.add(executor.submit(new Callable<Operation[]>() {
+				public Operation[] call() 
+				throws IOException {
+					
+					Operation[] partial = results.clone();
+					SketchesHelper.get(reader, keys, partial);
+					
+					return partial;
+				}
+			}));
+		
+		try {
+			
+			for (Future<Operation[]> future: futures) {
+				Operation[] partial = future.get();
+				for (int i = 0; i < keys.length; i++)
+					if (results[i] == null)
+						results[i] = partial[i];
+			}
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while looking up the keys");
+		} catch (ExecutionException e) {
+			throw new IOException("Error while looking up the keys", e.getCause());
 		}
 	}
 
-	private void doPut(byte[] key, Operation o) 
+	/*
+	 * Every reader is scanned, youngest first as they are in the snapshot, and the Scanner keeps the snapshot 
+	 * pinned until it's closed.
+	 */
+	private Scanner doScan(byte[] startKey, byte[] endKey) 
+	throws IOException {
+		
+		final OperationReaders readers = state.pin();
+		List<OperationIterator> iterators = new ArrayList<OperationIterator>();
+		Scanner scanner = null;
+		try {
+			
+			for (OperationReader reader: readers)
+				iterators.add(reader.scan(startKey, endKey));
+			
+			scanner = new Scanner(iterators, new Closeable() {
+				public void close() {
+					state.unpin(readers);
+				}
+			});
+			
+			return scanner;
+			
+		} finally {
+			if (scanner == null) {
+				for (OperationIterator iterator: iterators)
+					iterator.close();
+				state.unpin(readers);
+			}
+		}
+	}
+
+	/*
+	 * Pins the current snapshot for a write to its Memstore. The Scriber waits only for 
+	 * the writes in flight on the Memstore it swapped out, not for the readers of the
+	 * snapshot, so an open Scanner doesn't hold back scribing.
+	 */
+	private OperationReaders pinForWrite() {
+		
+		while (true) {
+			OperationReaders readers = state.pin();
+			
+			if (readers.getMemstore().startWrite())
+				return readers;
+			state.unpin(readers); // swapped out and frozen meanwhile, the new snapshot has the new one
+		}
+	}
+	
+	private void unpinForWrite(OperationReaders readers) {
+		readers.getMemstore().endWrite();
+		state.unpin(readers);
+	}
+	
+	/*
+	 * A null durability means the Memstore's default one.
+	 */
+	private void doPut(byte[] key, Operation o, Durability durability) 
 	throws IOException {
 
-		state.readLock.lock();
+		writeController.await();
+		OperationReaders readers = pinForWrite();
 		try {
 
-			state.getMutator().put(key, o);
+			if (durability == null)
+				readers.getMemstore().put(key, o);
+			else
+				readers.getMemstore().put(key, o, durability);
 
 		} finally {
-			state.readLock.unlock();
+			unpinForWrite(readers);
 		}
 	}
 	
-	private void doDelete(byte[] key) 
+	private void doWrite(WriteBatch batch, Durability durability) 
 	throws IOException {
 
-		state.readLock.lock();
+		writeController.await();
+		OperationReaders readers = pinForWrite();
 		try {
 
-			state.getMutator().delete(key);
+			if (durability == null)
+				readers.getMemstore().write(batch.getOperations());
+			else
+				readers.getMemstore().write(batch.getOperations(), durability);
 
 		} finally {
-			state.readLock.unlock();
+			unpinForWrite(readers);
+		}
+	}
+	
+	/*
+	 * The caller is never parked: while the writes are stopped the write is queued by 
+	 * the WriteController, and its future follows the one of the write once it's run.
+	 */
+	private ListenableFuture<Void> doAsync(final Operation o, Durability durability) {
+		
+		return doAsync(new AsyncWrite() {
+			public ListenableFuture<Void> apply(Memstore memstore, Durability durability) 
+			throws IOException {
+				
+				return memstore.putAsync(o, durability);
+			}
+		}, durability);
+	}
+	
+	private ListenableFuture<Void> doAsync(final OperationBatch batch, Durability durability) {
+		
+		return doAsync(new AsyncWrite() {
+			public ListenableFuture<Void> apply(Memstore memstore, Durability durability) 
+			throws IOException {
+				
+				return memstore.writeAsync(batch, durability);
+			}
+		}, durability);
+	}
+	
+	private ListenableFuture<Void> doAsync(final AsyncWrite write, final Durability durability) {
+
+		final SettableFuture<Void> deferred = SettableFuture.create();
+		try {
+			
+			if (!writeController.defer(new Runnable() {
+				public void run() {
+					forward(appendAsync(write, durability), deferred);
+				}
+			}))
+				return appendAsync(write, durability);
+			
+		} catch (IOException e) {
+			return Futures.immediateFailedFuture(e);
+		}
+		
+		return deferred;
+	}
+	
+	private static void forward(final ListenableFuture<Void> from, final SettableFuture<Void> to) {
+		from.addListener(new Runnable() {
+			public void run() {
+				try {
+					to.set(from.get());
+				} catch (ExecutionException e) {
+					to.setException(e.getCause());
+				} catch (Throwable e) {
+					to.setException(e);
+				}
+			}
+		}, new Executor() {
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+	}
+	
+	/*
+	 * The Memstore can't be closed before the write is appended to its log, after 
+	 * that its close() waits for the log to be synced and the future to be done.
+	 */
+	private ListenableFuture<Void> appendAsync(AsyncWrite write, Durability durability) {
+
+		OperationReaders readers;
+		try {
+			readers = pinForWrite();
+		} catch (RuntimeException e) { // shut down meanwhile
+			return Futures.immediateFailedFuture(e);
+		}
+		
+		try {
+
+			Memstore memstore = readers.getMemstore();
+			
+			return write.apply(memstore, durability != null ? durability : memstore.getDurability());
+
+		} catch (IOException e) {
+			return Futures.immediateFailedFuture(e);
+		} finally {
+			unpinForWrite(readers);
+		}
+	}
+	
+	private void doDelete(byte[] key, Durability durability) 
+	throws IOException {
+
+		writeController.await();
+		OperationReaders readers = pinForWrite();
+		try {
+
+			if (durability == null)
+				readers.getMemstore().delete(key);
+			else
+				readers.getMemstore().delete(key, durability);
+
+		} finally {
+			unpinForWrite(readers);
 		}
 	}
 	
@@ -189,28 +717,69 @@ public class Sketches {
 											  conf.getInt("sketches.flusherdelay", 10000), 
 											  conf.getInt("sketches.flusherdelay", 10000), 
 											  TimeUnit.MILLISECONDS);
-		scheduledExecutor.scheduleAtFixedRate(new ScriberScheduler(), 
-				  							  conf.getInt("sketches.scriberdelay", 30), 
-				  							  conf.getInt("sketches.scriberdelay", 30), 
-				  							  TimeUnit.SECONDS);
+		scribeTrigger.start();
 		
 		state.init();
 	}
 	
-	private void scheduleCompaction() {
-		int maxFiles = conf.getInt("sketches.sfile.maxfiles", 4);
+	private void scheduleScribe() {
+		if (state.getReaders().getMemstore().isFull())
+			executor.submit(new Scriber());
+	}
+	
+	/*
+	 * A full Memstore asks to be scribed only once, so after a failed Scriber we 
+	 * ask again, every sketches.scriber.retrydelay ms (default: 1000) until it's done.
+	 * A Scriber that failed after swapping its Memstore out is run again as it is: 
+	 * its RAMSFile keeps its turn in the scribing queue.
+	 */
+	private void retryScribe(final Scriber scriber) {
 		
-		state.readLock.lock();
 		try {
 			
-			if (state.calculateCompactables() > maxFiles && state.startCompaction())
-				executor.submit(new Compactor());
-				
-		} finally {
-			state.readLock.unlock();
+			scheduledExecutor.schedule(new Runnable() {
+				public void run() {
+					try {
+						if (scriber.isSwapped())
+							executor.submit(scriber);
+						else
+							scheduleScribe();
+					} catch (Exception e) {
+						logger.error("Error while running a scriber schedule", e);
+					}
+				}
+			}, conf.getInt("sketches.scriber.retrydelay", 1000), TimeUnit.MILLISECONDS);
+			
+		} catch (RejectedExecutionException e) {
+			// shutting down
 		}
 	}
 	
+	/*
+	 * Once the compactions are sketches.io.ratelimit.boost.debt MB (default: 1024) 
+	 * behind, as the CompactionStrategy counts it, the background writes are boosted 
+	 * until they catch up.
+	 */
+	private void scheduleCompaction() {
+		FSSFile[] sfiles = getSFiles(state.getReaders());
+		
+		RateLimiter.getLimiter().setBoosted(compactionStrategy.getCompactionDebt(sfiles) 
+				>= conf.getInt("sketches.io.ratelimit.boost.debt", 1024) * 1024L * 1024L);
+		if (compactionStrategy.needsCompaction(sfiles) && state.startCompaction())
+			executor.submit(new Compactor());
+	}
+	
+	/*
+	 * The SFiles on disk, youngest first.
+	 */
+	private static FSSFile[] getSFiles(OperationReaders readers) {
+		OperationReader[] files = readers.getFileReaders();
+		FSSFile[] sfiles        = new FSSFile[files.length];
+		System.arraycopy(files, 0, sfiles, 0, files.length);
+		
+		return sfiles;
+	}
+	
 	/* +---------------------------------+
 	 * | ScheduledTask Robots start here |
 	 * +---------------------------------+
@@ -227,49 +796,73 @@ public class Sketches {
 		@Override
 		public void run() {
 
-			state.readLock.lock();
+			OperationReaders readers = state.pin();
 			try {
 				
-				state.getMutator().flush();
+				readers.getMemstore().flush();
 
 			} catch (Exception e) {
 				logger.error("Error while flushing", e);
 			} finally {
-				state.readLock.unlock();
+				state.unpin(readers);
 			}
 		}
 	}
 	
 	/*
-	 * This is executed every sketches.scriberdelay (default: 30s) and checks
-	 * whether Memstore has seen over sketches.memstore.maxsize (default: 64MB)
-	 * of data. In that case it scribes it to SFile. Only one of these threads
-	 * is running at each time and it triggers a compaction after it's done.
-	 * It can run concurrently to a Flusher and to a Compactor.
+	 * The Memstore tells the ScribeTrigger when it has seen over sketches.memstore.maxsize
+	 * (default: 64MB) of data. The writer that crossed the threshold only raises a 
+	 * flag and wakes up the trigger's own thread, that schedules a Scriber to scribe
+	 * the Memstore to SFile. The Scriber triggers a compaction after it's done. It 
+	 * can run concurrently to a Flusher and to a Compactor.
 	 * 
 	 * Important: timing is an issue here, if filling memstore takes less time
-	 * than scribing, we will have delays. This should only happen in a write-only
-	 * scenario as writing to logfile or to SFile has the same cost (append-only 
-	 * writes), but memstore has hashmap's overhead and scribing has the overhead 
-	 * of sorting and indexing.
+	 * than scribing, the old Memstores pile up in memory waiting to be scribed. 
+	 * This should only happen in a write-only scenario as writing to logfile or to 
+	 * SFile has the same cost (append-only writes), but memstore has hashmap's 
+	 * overhead and scribing has the overhead of sorting and indexing. The 
+	 * WriteController slows down and then stops the writes when that happens.
 	 */ 
-	private class ScriberScheduler 
-	implements Runnable {
+	private interface AsyncWrite {
+		public ListenableFuture<Void> apply(Memstore memstore, Durability durability) throws IOException;
+	}
+	
+	private class ScribeTrigger 
+	implements Runnable, FlushListener {
 
+		private final AtomicBoolean requested = new AtomicBoolean(false);
+		private final Thread thread = new Thread(this, "ScribeTrigger");
+		
+		public void start() {
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		public void stop() {
+			LockSupport.unpark(thread);
+		}
+		
+		public void flushRequested(Memstore memstore) {
+			requested.set(true);
+			LockSupport.unpark(thread);
+		}
+		
 		@Override
 		public void run() {
-			int threshold = conf.getInt("sketches.memstore.maxsize", 64) * 1024 * 1024;
 
-			state.readLock.lock();
-			try {
-				
-				if (state.getMutator().getSize() >= threshold)
-					executor.submit(new Scriber());
+			while (!state.isShutdown()) {
+				if (!requested.getAndSet(false)) {
+					LockSupport.park(this);
+					continue;
+				}
 				
-			} catch (Exception e) {
-				logger.error("Error while running a scriber schedule", e);
-			} finally {
-				state.readLock.unlock();
+				try {
+					
+					scheduleScribe();
+					
+				} catch (Exception e) {
+					logger.error("Error while running a scriber schedule", e);
+				}
 			}
 		}
 	}
@@ -277,169 +870,196 @@ public class Sketches {
 	private class Scriber
 	implements Runnable {
 
+		// set by the swap, a retry goes on from there
+		private Memstore oldStore;
+		private SFile ramSFile;
+		
+		public boolean isSwapped() {
+			return ramSFile != null;
+		}
+		
 		@Override
 		public void run() {
 
+			boolean published = false;
 			try {
 
-				OperationReaders readers = state.getReaders();
-				Memstore oldStore, newStore;
-				SFile ramSFile;
-				
 				// 1st: create a new Memstore and create an in-memory SFile with the old one
-				state.writeLock.lock();
-				try {
-
-					newStore = new Memstore();
-					oldStore = readers.setMemstore(newStore);
-					ramSFile = new RAMSFile(oldStore);
-					readers.add(ramSFile);
+				if (!isSwapped()) {
+					
+					if (!canSwap(state.getReaders()))
+						return;
 					
-					state.setMutator(newStore);
-					state.log(new NewLogfile(newStore.getName()));
+					// creating its log segment can take a while, the writes don't wait for it
+					Memstore newStore = new Memstore();
+					newStore.setFlushListener(scribeTrigger);
 					
-				} finally {
-					state.writeLock.unlock();
+					state.swapLock.lock();
+					try {
+
+						OperationReaders readers = state.getReaders();
+						if (!canSwap(readers)) 
+							return;
+						
+						SFile swapped = new RAMSFile(readers.getMemstore());
+						state.publish(readers.withMemstore(newStore).with(swapped));
+						oldStore = readers.getMemstore();
+						ramSFile = swapped;
+						state.scribing.add(ramSFile);
+						
+						state.log(new NewLogfile(newStore.getName()));
+						
+					} finally {
+						state.swapLock.unlock();
+						if (!isSwapped())
+							discard(newStore);
+					}
 				}
 
+				// writes could still be going to the old Memstore
+				oldStore.freeze();
+				
 				String filename = FilenamesFactory.getSFileName();
 				
 				// 2nd: scribe the old memstore to a proper SFile
 				SketchesHelper.scribe(oldStore, filename);
+				SFile sfile = new FSSFile(filename);
 				
 				// 3rd: substitute the in-memory SFile with the one on-disk
-				state.writeLock.lock();
+				state.swapLock.lock();
 				try {
 
-					// switch temporary RAMSFile with fresh new SFile
-					readers.remove(ramSFile);
-					readers.add(new FSSFile(filename));
+					// in swap order, or an older RAMSFile would be asked before a younger SFile
+					while (state.scribing.peek() != ramSFile)
+						state.scribed.await();
+					
+					// what the SFiles answer for these keys is about to change
+					if (rowCache != null)
+						rowCache.invalidate(oldStore);
+
+					// switch temporary RAMSFile with fresh new SFile, the old Memstore and 
+					// its log go when nobody can reach them anymore
+					state.publish(state.getReaders().without(ramSFile).with(sfile), ramSFile, new Closeable() {
+						public void close() {
+							oldStore.recycle();
+						}
+					});
+					state.scribed(ramSFile);
+					published = true;
 					
 					state.log(new NewScribedSFile(filename, oldStore.getName()));
 
 				} finally {
-					state.writeLock.unlock();
+					state.swapLock.unlock();
 				}
 
-				// 4th: see if there's work for the Compactor
+				// 4th: see if there's work for the Compactor, and for another Scriber
 				scheduleCompaction();
+				scheduleScribe();
 				
 			} catch (Exception e) {
 				logger.error("Error while running scribing", e);
-			} 
+				// a swapped Memstore that didn't make it to the SFiles holds its RAMSFile's 
+				// turn, the younger ones wait for it
+				if (!published)
+					retryScribe(this);
+			}
+		}
+		
+		/*
+		 * Swapped already, or too many are waiting: a running Scriber will schedule us
+		 * again when it's done.
+		 */
+		private boolean canSwap(OperationReaders readers) {
+			return readers.getMemstore().isFull()
+				&& readers.getMemoryReaders().length - 1 < writeController.getMaxImmutableMemstores();
+		}
+		
+		/*
+		 * A new Memstore that didn't make it: its segment goes to the next one.
+		 */
+		private void discard(Memstore memstore) {
+			try {
+				memstore.close();
+				memstore.recycle();
+			} catch (IOException e) {
+				logger.error("Error while discarding an unused memstore", e);
+			}
 		}
 		
 	}
 	/*
 	 * Compactor is triggered by the Scriber or by itself and there will be just one
 	 * Compactor running each time. For long-running Compactors it can happen that
-	 * Scriber has created new SFiles in the meantime (thus exceding sketches.sfile.maxfiles),
-	 * therefor Compactor triggers a possible new Compactor when it's finished.
+	 * Scriber has created new SFiles in the meantime, therefor Compactor triggers a 
+	 * possible new Compactor when it's finished.
+	 * 
+	 * What to compact is decided by the CompactionStrategy. The selected SFiles are
+	 * merged in a single pass. When the outputs go to a level above 0, where a run
+	 * is made of many SFiles, their key space is cut in ranges that are merged in 
+	 * parallel: one per sketches.compaction.threads (default: the number of cores), 
+	 * of at least sketches.compaction.rangesize MB (default: 32). The outputs of all
+	 * the ranges are installed together. In level 0 each SFile is a run by itself, 
+	 * so the outputs are kept in one SFile.
 	 */ 
 	private class Compactor 
 	implements Runnable {
 
-		private final OperationReaders readers = state.getReaders();
-		
+		private final long minRangeSize = Math.max(conf.getInt("sketches.compaction.rangesize", 32) * 1024L * 1024L, 1);
+
 		@Override
 		public void run() { 
 
+			boolean compacted = false;
 			try {
 
-				SFile younger, older;
-				boolean major;
-
-				// 1st: select the SFiles to compact
-				state.readLock.lock();
-				try {
-
-					OperationReader[] readersArray = readers.toArray();
-					
-					try {
-
-						int idx = selectSFile(readersArray);
-					
-						major   = (idx == readersArray.length - 1);
-						older   = (SFile) readersArray[idx];
-						younger = (SFile) readersArray[idx - 1];
-					
-					} catch (UncompactableException e) {
-						logger.debug("Aborting Compaction", e);
-						return;
-					}
-					
-				} finally { 
-					state.readLock.unlock();
+				// 1st: select the SFiles to compact. Only the Compactor retires SFiles, 
+				// so they stay open even without pinning the snapshot
+				Compaction compaction = compactionStrategy.select(getSFiles(state.getReaders()));
+				if (compaction == null) {
+					logger.debug("Aborting Compaction, nothing to compact");
+					return;
 				}
 				
-				String filename = FilenamesFactory.getSFileName();
-
-				// 2nd: compact them
-				SketchesHelper.compact(younger.getName(), older.getName(), filename, major);
+				List<String> names = compaction.getInputNames();
+				FSSFile[] inputs   = compaction.getInputs().toArray(new FSSFile[0]);
+				
+				// 2nd: compact them, a range of keys per thread but not too small ones
+				long size = 0;
+				for (FSSFile sfile: inputs)
+					size += sfile.getSize();
+				int ranges = compaction.getLevel() > 0 ? (int) Math.max(Math.min(compactionThreads, size / minRangeSize), 1) : 1;
+				
+				List<String> filenames = SketchesHelper.compact(compaction.getInputs(), compaction.isMajor(), 
+						compaction.getMaxFileSize(), compactionExecutor, ranges);
+				
+				FSSFile[] sfiles = new FSSFile[filenames.size()];
+				for (int i = 0; i < sfiles.length; i++) {
+					sfiles[i] = new FSSFile(filenames.get(i));
+					sfiles[i].setLevel(compaction.getLevel());
+				}
 
-				// 3rd: remove the old SFiles and insert the fresh compact SFile
-				state.writeLock.lock();
+				// 3rd: remove the old SFiles and insert the fresh compact SFiles, the old ones
+				// are closed when nobody uses them anymore
+				state.swapLock.lock();
 				try {
 				
-					readers.remove(younger);
-					readers.remove(older);
-					readers.add(new FSSFile(filename));
+					state.publish(state.getReaders().without(inputs).with(sfiles), inputs);
 					
-					state.log(new NewCompactedSFile(younger.getName(), older.getName(), filename, major));
+					state.log(new NewCompactedSFile(names, filenames, compaction.getLevel(), compaction.isMajor()));
 
 				} finally {
-					state.writeLock.unlock();
+					state.swapLock.unlock();
 				}
 				
+				compacted = true;
+				
 			} catch (Exception e) {
 				logger.error("Error while running compaction", e);
 			} finally {
 				state.stopCompaction();
-				scheduleCompaction(); // is there more work for us?
-			}
-		}
-		
-		/*
-		 * Selection policy. Try to merge files that are close in size, so we try to avoid small 
-		 * adds to extablished big SFiles.
-		 * Also, by taking minimum (possibly negative), we try to have bigger old files instead 
-		 * of bigger young ones.
-		 */
-		private int selectSFile(OperationReader[] readersArray) {
-
-			boolean compactable[] = new boolean[readersArray.length];
-			long sizes[] = new long[readersArray.length];
-			long diffs[] = new long[readersArray.length - 1];
-			long min = Long.MAX_VALUE;
-			int idx	 = -1;
-
-			int i = 0;
-			for (OperationReader reader: readersArray) {
-				sizes[i] = reader.getSize();
-				compactable[i++] = reader.isCompactable();
-			}
-
-			for (i = 0; i < diffs.length; i++) {
-				diffs[i] = sizes[i + 1] - sizes[i];
-
-				if (diffs[i] < min && compactable[i] && compactable[i + 1]) {
-					min = diffs[i];
-					idx = i;
-				}
-			}
-
-			if (idx == -1)
-				throw new UncompactableException("Can't find 2 compactable SFiles close");
-				
-			return idx;
-		}
-		
-		private class UncompactableException extends RuntimeException {
-			
-			private static final long serialVersionUID = -8568111599942143236L;
-
-			public UncompactableException(String error) {
-				super(error);
+				if (compacted)
+					scheduleCompaction(); // is there more work for us?
 			}
 		}
 	}
@@ -448,12 +1068,14 @@ public class Sketches {
 
 		private final AtomicBoolean isUnderCompaction = new AtomicBoolean(false);
 		private final AtomicBoolean isShutdown        = new AtomicBoolean(false);
-		private final OperationReaders readers        = new OperationReaders();
-		private final ReentrantReadWriteLock lock     = new ReentrantReadWriteLock();
-		private OperationMutator mutator;
+		private final AtomicReference<OperationReaders> readers = new AtomicReference<OperationReaders>();
+		// replaced snapshots, in order, waiting for their last pin to go
+		private final ConcurrentLinkedQueue<OperationReaders> replaced = new ConcurrentLinkedQueue<OperationReaders>();
 		private Logfile stateLog;
-		public final Lock readLock  = lock.readLock();
-		public final Lock writeLock = lock.writeLock();
+		public final Lock swapLock = new ReentrantLock();
+		// the RAMSFiles being scribed, in the order they were swapped. Guarded by swapLock
+		public final Queue<SFile> scribing = new LinkedList<SFile>();
+		public final Condition scribed     = swapLock.newCondition();
 
 		public void init()
 		throws IOException {
@@ -464,38 +1086,136 @@ public class Sketches {
 			String logfile = stateLogReader.getLogfile();
 			List<String> sfiles    = stateLogReader.getSFiles();
 			List<String> screibees = stateLogReader.getScribees();
-
+			
+			// the Memstore we were writing to when we stopped
+			Memstore memory = logfile != null ? SketchesHelper.loadLogfile(logfile) : new Memstore();
+			OperationReaders initial = new OperationReaders(memory);
+			
+			// the SFiles go back to their levels, or the reads would ask them out of order
+			for (String filename: sfiles) {
+				FSSFile sfile = new FSSFile(filename);
+				sfile.setLevel(stateLogReader.getLevel(filename));
+				initial = initial.with(sfile);
+			}
+			
+			readers.set(initial);
+			memory.setFlushListener(scribeTrigger);
 		}
 
+		/*
+		 * Waits for the calls that are still running and closes all the readers.
+		 */
 		public void shutdown() 
 		throws IOException {
 		
-			for (OperationReader reader: readers)
-				reader.close();
+			swapLock.lock();
+			try {
+
+				OperationReaders last = readers.get();
+				last.retire(last.toArray());
+				replaced.add(last);
+				unpin(last);
+				last.awaitReclaimed();
+				
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while shutting down");
+			} finally {
+				swapLock.unlock();
+			}
 			
 			stateLog.close();
 		}
 
 		/*
-		 * Grants access to the readers List. Guarded by readLock for reading and by writeLock for
-		 * modification.
+		 * The current snapshot of the readers. It must be unpinned after use.
+		 */
+		public OperationReaders pin() {
+
+			while (true) {
+				OperationReaders current = readers.get();
+
+				if (current.pin()) {
+					if (current == readers.get())
+						return current;
+					unpin(current); // replaced meanwhile, don't start working on an old one
+				} else {
+					checkState(current != readers.get(), "Sketches has been shut down");
+				}
+			}
+		}
+
+		public void unpin(OperationReaders snapshot) {
+			if (snapshot.unpin())
+				reclaim();
+		}
+
+		/*
+		 * The current snapshot, without pinning it. Modifications are guarded by swapLock.
 		 */
 		public OperationReaders getReaders() {
-			return this.readers;
+			return this.readers.get();
+		}
+
+		/*
+		 * Publishes a new snapshot in place of the current one. The retired readers are closed 
+		 * when the current snapshot, and all the ones before it, are not used anymore.
+		 * Guarded by swapLock.
+		 *
+		 * @return the snapshot that has been replaced
+		 */
+		public OperationReaders publish(OperationReaders next, Closeable... retired) {
+			OperationReaders old = readers.getAndSet(next);
+			
+			// the RAMSFiles are the immutable Memstores
+			writeController.update(next.getMemoryReaders().length - 1);
+
+			old.retire(retired);
+			replaced.add(old);
+			unpin(old);
+
+			return old;
 		}
 
 		/*
-		 * Grants access to the mutator. Guarded by readLock.
+		 * Snapshots are reclaimed in the order they have been replaced, so a reader is never
+		 * closed while an older snapshot can still reach it.
 		 */
-		public OperationMutator getMutator() {
-			return this.mutator;
+		private void reclaim() {
+
+			synchronized (replaced) {
+
+				OperationReaders oldest;
+				while ((oldest = replaced.peek()) != null && !oldest.isPinned()) {
+					replaced.poll();
+
+					for (Closeable reader: oldest.getRetired()) {
+						try {
+							reader.close();
+						} catch (Exception e) {
+							logger.error("Error while closing a retired reader", e);
+						}
+					}
+
+					oldest.setReclaimed();
+				}
+			}
 		}
 
 		/*
-		 * Sets a new mutator. Guarded by writeLock.
+		 * The RAMSFile has been replaced by its SFile, the next one can go.
 		 */
-		public void setMutator(OperationMutator mutator) {
-			this.mutator = mutator;
+		public void scribed(SFile ramSFile) {
+
+			swapLock.lock();
+			try {
+				
+				if (scribing.remove(ramSFile))
+					scribed.signalAll();
+				
+			} finally {
+				swapLock.unlock();
+			}
 		}
 
 		public boolean isUnderCompaction() {
@@ -512,19 +1232,12 @@ public class Sketches {
 		
 		public int calculateCompactables() {
 
-			readLock.lock();
-			try {
-
-				int compactableFiles = 0;
-				for (OperationReader reader: readers)
-					if (reader.isCompactable())
-						compactableFiles++;
+			int compactableFiles = 0;
+			for (OperationReader reader: readers.get())
+				if (reader.isCompactable())
+					compactableFiles++;
 
-				return compactableFiles;
-
-			} finally {
-				readLock.unlock();
-			}
+			return compactableFiles;
 		}
 		
 		public boolean isShutdown() {
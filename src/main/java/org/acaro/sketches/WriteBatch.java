@@ -0,0 +1,71 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package org.acaro.sketches;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.acaro.sketches.operation.Delete;
+import org.acaro.sketches.operation.OperationBatch;
+import org.acaro.sketches.operation.Update;
+
+/**
+ * Puts and deletes collected to be written together by Sketches.write(). The batch
+ * goes to the log as a single record and is recovered either entirely or not at
+ * all. A key written twice keeps the last write.
+ *
+ * The same rules of put() apply: keys and values should be immutable. A batch is
+ * not thread-safe, and it must fit in a segment of the log.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public class WriteBatch {
+
+	private final OperationBatch batch = new OperationBatch();
+
+	public WriteBatch put(byte[] key, byte[] value) {
+		checkNotNull(key);
+		checkNotNull(value);
+		checkArgument(key.length <= Short.MAX_VALUE);
+
+		batch.add(new Update(key, value));
+
+		return this;
+	}
+
+	public WriteBatch delete(byte[] key) {
+		checkNotNull(key);
+		checkArgument(key.length <= Short.MAX_VALUE);
+
+		batch.add(new Delete(key));
+
+		return this;
+	}
+
+	public int size() {
+		return batch.size();
+	}
+
+	public void clear() {
+		batch.clear();
+	}
+
+	OperationBatch getOperations() {
+		return this.batch;
+	}
+}
@@ -0,0 +1,74 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package org.acaro.sketches.compaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.acaro.sketches.sfile.FSSFile;
+
+/**
+ * The SFiles selected by a CompactionStrategy to be merged in one pass, youngest 
+ * first. The result is split in SFiles of at most maxFileSize bytes of data, placed
+ * in level. A major Compaction drops the Deletes, as there's no older version of 
+ * their keys left to hide.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class Compaction {
+
+	private final List<FSSFile> inputs;
+	private final int level;
+	private final long maxFileSize;
+	private final boolean major;
+	
+	public Compaction(List<FSSFile> inputs, int level, long maxFileSize, boolean major) {
+		this.inputs      = inputs;
+		this.level       = level;
+		this.maxFileSize = maxFileSize;
+		this.major       = major;
+	}
+	
+	public List<FSSFile> getInputs() {
+		return this.inputs;
+	}
+	
+	public List<String> getInputNames() {
+		List<String> names = new ArrayList<String>(inputs.size());
+		for (FSSFile sfile: inputs)
+			names.add(sfile.getName());
+		
+		return names;
+	}
+	
+	public int getLevel() {
+		return this.level;
+	}
+	
+	public long getMaxFileSize() {
+		return this.maxFileSize;
+	}
+	
+	public boolean isMajor() {
+		return this.major;
+	}
+	
+	public String toString() {
+		return "Compaction of " + getInputNames() + " to level " + level + (major ? " (major)" : "");
+	}
+}
@@ -0,0 +1,51 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package org.acaro.sketches.compaction;
+
+import java.io.IOException;
+
+import org.acaro.sketches.sfile.FSSFile;
+
+/**
+ * Decides which SFiles the Compactor merges, and where the result goes. The 
+ * Compactor runs one Compaction at a time, so implementations don't need to be 
+ * thread-safe. The SFiles are always passed youngest first, as they are read.
+ * 
+ * The strategy is chosen with sketches.compaction.strategy (see CompactionStrategyFactory).
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public interface CompactionStrategy {
+
+	/**
+	 * A cheap check, without I/O, of whether select() would find some work.
+	 */
+	public boolean needsCompaction(FSSFile[] sfiles);
+	
+	/**
+	 * A cheap estimate, without I/O, of how far behind the compactions are.
+	 * 
+	 * @return the bytes that should have been compacted already, 0 if none
+	 */
+	public long getCompactionDebt(FSSFile[] sfiles);
+	
+	/**
+	 * @return the next Compaction, or null if there's nothing worth compacting
+	 */
+	public Compaction select(FSSFile[] sfiles) throws IOException;
+}
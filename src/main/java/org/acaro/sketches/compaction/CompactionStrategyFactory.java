@@ -0,0 +1,42 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package org.acaro.sketches.compaction;
+
+import org.acaro.sketches.utils.Configuration;
+
+/**
+ * Creates the CompactionStrategy set by sketches.compaction.strategy: "sizeratio"
+ * (default), "leveled" or "tiered".
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class CompactionStrategyFactory {
+
+	public static CompactionStrategy createStrategy(Configuration conf) {
+		String type = conf.getString("sketches.compaction.strategy", "sizeratio");
+		
+		if ("sizeratio".equals(type))
+			return new SizeRatioCompactionStrategy(conf);
+		else if ("leveled".equals(type))
+			return new LeveledCompactionStrategy(conf);
+		else if ("tiered".equals(type))
+			return new TieredCompactionStrategy(conf);
+		else
+			throw new IllegalArgumentException("unknown compaction strategy " + type);
+	}
+}
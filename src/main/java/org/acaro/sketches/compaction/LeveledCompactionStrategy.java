@@ -0,0 +1,256 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package org.acaro.sketches.compaction;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.acaro.sketches.sfile.FSSFile;
+import org.acaro.sketches.sfile.SparseIndex;
+import org.acaro.sketches.utils.Configuration;
+
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * Keeps the SFiles in levels. Scribed SFiles land in level 0, where they can overlap.
+ * From level 1 on, each level is a single sorted run split in SFiles of at most 
+ * sketches.compaction.leveled.filesize MB of data (default: 64MB) that don't overlap,
+ * and each level can hold sketches.compaction.leveled.fanout (default: 10) times the 
+ * bytes of the one before it, starting from sketches.compaction.leveled.l1size MB 
+ * (default: 256MB) for level 1. A key is in at most one SFile per level from 1 on, 
+ * so the number of SFiles a read can touch grows with the number of levels, not of 
+ * SFiles.
+ * 
+ * Level 0 is compacted into level 1 once it has sketches.compaction.leveled.l0files 
+ * SFiles (default: 4), all of them together with the SFiles of level 1 they overlap.
+ * A level over its budget pushes one SFile at a time to the next one, together with 
+ * the SFiles it overlaps there, going round the key space. The level that is the
+ * most over budget goes first.
+ * 
+ * The key range of each SFile comes from its SparseIndex.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class LeveledCompactionStrategy 
+implements CompactionStrategy {
+
+	private static final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+	private final int l0Files;
+	private final long fileSize;
+	private final long l1Size;
+	private final int fanout;
+	// the last key compacted from each level
+	private final Map<Integer, byte[]> pointers = new HashMap<Integer, byte[]>();
+	
+	public LeveledCompactionStrategy(Configuration conf) {
+		this.l0Files  = Math.max(conf.getInt("sketches.compaction.leveled.l0files", 4), 1);
+		this.fileSize = conf.getInt("sketches.compaction.leveled.filesize", 64) * 1024L * 1024L;
+		this.l1Size   = conf.getInt("sketches.compaction.leveled.l1size", 256) * 1024L * 1024L;
+		this.fanout   = Math.max(conf.getInt("sketches.compaction.leveled.fanout", 10), 2);
+	}
+	
+	public boolean needsCompaction(FSSFile[] sfiles) {
+		return selectLevel(getLevels(sfiles)) != -1;
+	}
+	
+	/*
+	 * All of level 0 once it has to be compacted, and what every other level holds
+	 * over its budget.
+	 */
+	public long getCompactionDebt(FSSFile[] sfiles) {
+		List<List<FSSFile>> levels = getLevels(sfiles);
+		long debt = 0;
+		
+		for (int i = 0; i < levels.size(); i++) {
+			long size = 0;
+			for (FSSFile sfile: levels.get(i))
+				size += sfile.getSize();
+			
+			if (i == 0)
+				debt += levels.get(0).size() >= l0Files ? size : 0;
+			else
+				debt += Math.max(size - getMaxLevelSize(i), 0);
+		}
+		
+		return debt;
+	}
+	
+	public Compaction select(FSSFile[] sfiles) 
+	throws IOException {
+		
+		List<List<FSSFile>> levels = getLevels(sfiles);
+		int level = selectLevel(levels);
+		if (level == -1)
+			return null;
+		
+		List<FSSFile> inputs = new ArrayList<FSSFile>();
+		if (level == 0)
+			inputs.addAll(levels.get(0));
+		else
+			inputs.add(selectSFile(level, levels.get(level)));
+		
+		// the range covered by the inputs, and what overlaps it in the next level
+		byte[][] range = getRange(inputs);
+		if (level + 1 < levels.size())
+			for (FSSFile sfile: levels.get(level + 1))
+				if (overlaps(sfile, range))
+					inputs.add(sfile);
+		
+		// the Deletes can go if no older version of their keys is left below
+		boolean major = true;
+		for (int i = level + 2; i < levels.size() && major; i++)
+			for (FSSFile sfile: levels.get(i))
+				if (overlaps(sfile, range))
+					major = false;
+		
+		return new Compaction(inputs, level + 1, fileSize, major);
+	}
+	
+	/*
+	 * The SFiles of each level, youngest first.
+	 */
+	private List<List<FSSFile>> getLevels(FSSFile[] sfiles) {
+		List<List<FSSFile>> levels = new ArrayList<List<FSSFile>>();
+		
+		for (FSSFile sfile: sfiles) {
+			while (levels.size() <= sfile.getLevel())
+				levels.add(new ArrayList<FSSFile>());
+			levels.get(sfile.getLevel()).add(sfile);
+		}
+		if (levels.isEmpty())
+			levels.add(new ArrayList<FSSFile>());
+		
+		return levels;
+	}
+	
+	/*
+	 * @return the level that is the most over its budget, or -1
+	 */
+	private int selectLevel(List<List<FSSFile>> levels) {
+		int selected = -1;
+		double max   = 1.0;
+		
+		for (int i = 0; i < levels.size(); i++) {
+			double score;
+			if (i == 0) {
+				score = (double) levels.get(0).size() / l0Files;
+			} else {
+				long size = 0;
+				for (FSSFile sfile: levels.get(i))
+					size += sfile.getSize();
+				score = (double) size / getMaxLevelSize(i);
+			}
+			
+			if (score >= max && (selected == -1 || score > max)) {
+				selected = i;
+				max      = score;
+			}
+		}
+		
+		return selected;
+	}
+	
+	private long getMaxLevelSize(int level) {
+		long size = l1Size;
+		for (int i = 1; i < level; i++)
+			size *= fanout;
+		
+		return size;
+	}
+	
+	/*
+	 * The first SFile that starts after the last key compacted from the level, or the 
+	 * first one of the level.
+	 */
+	private FSSFile selectSFile(int level, List<FSSFile> sfiles) 
+	throws IOException {
+		
+		final Map<FSSFile, byte[]> firstKeys = new HashMap<FSSFile, byte[]>();
+		for (FSSFile sfile: sfiles)
+			firstKeys.put(sfile, sfile.getSparseIndex().getFirstKey());
+		
+		List<FSSFile> sorted = new ArrayList<FSSFile>(sfiles);
+		Collections.sort(sorted, new Comparator<FSSFile>() {
+			public int compare(FSSFile left, FSSFile right) {
+				return compareKeys(firstKeys.get(left), firstKeys.get(right));
+			}
+		});
+		
+		FSSFile selected = sorted.get(0);
+		byte[] pointer   = pointers.get(level);
+		if (pointer != null)
+			for (FSSFile sfile: sorted)
+				if (firstKeys.get(sfile) != null && comparator.compare(firstKeys.get(sfile), pointer) > 0) {
+					selected = sfile;
+					break;
+				}
+		
+		pointers.put(level, selected.getSparseIndex().getLastKey());
+		
+		return selected;
+	}
+	
+	/*
+	 * @return the smallest and the biggest key of the SFiles, or null if they're empty
+	 */
+	private byte[][] getRange(List<FSSFile> sfiles) 
+	throws IOException {
+		
+		byte[][] range = null;
+		for (FSSFile sfile: sfiles) {
+			SparseIndex index = sfile.getSparseIndex();
+			if (index.getFirstKey() == null)
+				continue;
+			
+			if (range == null)
+				range = new byte[][] { index.getFirstKey(), index.getLastKey() };
+			if (comparator.compare(index.getFirstKey(), range[0]) < 0)
+				range[0] = index.getFirstKey();
+			if (comparator.compare(index.getLastKey(), range[1]) > 0)
+				range[1] = index.getLastKey();
+		}
+		
+		return range;
+	}
+	
+	private boolean overlaps(FSSFile sfile, byte[][] range) 
+	throws IOException {
+		
+		SparseIndex index = sfile.getSparseIndex();
+		if (range == null || index.getFirstKey() == null)
+			return false;
+		
+		return comparator.compare(index.getFirstKey(), range[1]) <= 0 
+			&& comparator.compare(index.getLastKey(), range[0]) >= 0;
+	}
+	
+	/*
+	 * Empty SFiles first.
+	 */
+	private static int compareKeys(byte[] left, byte[] right) {
+		if (left == null || right == null)
+			return left == null ? (right == null ? 0 : -1) : 1;
+		
+		return comparator.compare(left, right);
+	}
+}
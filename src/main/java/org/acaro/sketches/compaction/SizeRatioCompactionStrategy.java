@@ -0,0 +1,93 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package org.acaro.sketches.compaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.acaro.sketches.sfile.FSSFile;
+import org.acaro.sketches.utils.Configuration;
+
+/**
+ * The default strategy. It compacts once there are more than sketches.sfile.maxfiles
+ * SFiles (default: 4), merging a run of SFiles adjacent in age taken from the oldest
+ * end: an SFile bigger than sketches.compaction.ratio (default: 1.2) times the younger
+ * SFiles that would be merged with it is left alone, so we try to avoid small adds 
+ * to established big SFiles. The run is made of sketches.compaction.minfiles 
+ * (default: 2) to sketches.compaction.maxfiles (default: 10) SFiles, and the result 
+ * is a single SFile.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class SizeRatioCompactionStrategy 
+implements CompactionStrategy {
+
+	private final int maxSFiles;
+	private final int minFiles;
+	private final int maxFiles;
+	private final float ratio;
+	
+	public SizeRatioCompactionStrategy(Configuration conf) {
+		this.maxSFiles = conf.getInt("sketches.sfile.maxfiles", 4);
+		this.minFiles  = Math.max(conf.getInt("sketches.compaction.minfiles", 2), 2);
+		this.maxFiles  = Math.max(conf.getInt("sketches.compaction.maxfiles", 10), minFiles);
+		this.ratio     = conf.getFloat("sketches.compaction.ratio", 1.2f);
+	}
+	
+	public boolean needsCompaction(FSSFile[] sfiles) {
+		return sfiles.length > maxSFiles;
+	}
+	
+	/*
+	 * The youngest SFiles, the ones beyond sketches.sfile.maxfiles.
+	 */
+	public long getCompactionDebt(FSSFile[] sfiles) {
+		long debt = 0;
+		for (int i = 0; i < sfiles.length - maxSFiles; i++)
+			debt += sfiles[i].getSize();
+		
+		return debt;
+	}
+	
+	public Compaction select(FSSFile[] sfiles) {
+		
+		if (!needsCompaction(sfiles))
+			return null;
+
+		int to = sfiles.length;
+		while (to >= minFiles) {
+			
+			int from     = Math.max(to - maxFiles, 0);
+			long younger = 0;
+			for (int i = from; i < to - 1; i++)
+				younger += sfiles[i].getSize();
+			
+			if (sfiles[to - 1].getSize() <= ratio * younger)
+				break;
+			to--;
+		}
+
+		if (to < minFiles)
+			return null;
+		
+		int from = Math.max(to - maxFiles, 0);
+		
+		return new Compaction(new ArrayList<FSSFile>(Arrays.asList(sfiles).subList(from, to)), 
+				0, Long.MAX_VALUE, to == sfiles.length);
+	}
+}
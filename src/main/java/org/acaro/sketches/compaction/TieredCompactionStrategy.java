@@ -0,0 +1,117 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package org.acaro.sketches.compaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.acaro.sketches.sfile.FSSFile;
+import org.acaro.sketches.utils.Configuration;
+
+/**
+ * Size-tiered strategy, for workloads that write much more than they read. Every 
+ * SFile is a sorted run, and runs are merged only once sketches.compaction.tiered.trigger
+ * of them (default: 4) have piled up, so data is rewritten fewer times than with 
+ * the other strategies, at the price of more SFiles to read and more space.
+ * 
+ * When triggered, going youngest first:
+ * 
+ * 1. if the SFiles younger than the oldest one take more than 
+ *    sketches.compaction.tiered.maxspaceamp percent (default: 200) of its size,
+ *    everything is merged together, to put a ceiling on the space taken by obsolete
+ *    versions.
+ * 2. otherwise the first run of similar SFiles is merged: an SFile joins the run if
+ *    it's at most sketches.compaction.tiered.sizeratio percent (default: 1) bigger
+ *    than the run so far. A run is made of sketches.compaction.tiered.minwidth 
+ *    (default: 2) to sketches.compaction.tiered.maxwidth (default: 32) SFiles.
+ * 3. otherwise the youngest SFiles are merged, as many as needed to go back under
+ *    the trigger.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class TieredCompactionStrategy 
+implements CompactionStrategy {
+
+	private final int trigger;
+	private final int sizeRatio;
+	private final int minWidth;
+	private final int maxWidth;
+	private final int maxSpaceAmplification;
+	
+	public TieredCompactionStrategy(Configuration conf) {
+		this.trigger               = Math.max(conf.getInt("sketches.compaction.tiered.trigger", 4), 2);
+		this.sizeRatio             = conf.getInt("sketches.compaction.tiered.sizeratio", 1);
+		this.minWidth              = Math.max(conf.getInt("sketches.compaction.tiered.minwidth", 2), 2);
+		this.maxWidth              = Math.max(conf.getInt("sketches.compaction.tiered.maxwidth", 32), minWidth);
+		this.maxSpaceAmplification = conf.getInt("sketches.compaction.tiered.maxspaceamp", 200);
+	}
+	
+	public boolean needsCompaction(FSSFile[] sfiles) {
+		return sfiles.length >= trigger;
+	}
+	
+	/*
+	 * The youngest SFiles, as many as needed to go back under the trigger.
+	 */
+	public long getCompactionDebt(FSSFile[] sfiles) {
+		long debt = 0;
+		for (int i = 0; i < sfiles.length - trigger + 1; i++)
+			debt += sfiles[i].getSize();
+		
+		return debt;
+	}
+	
+	public Compaction select(FSSFile[] sfiles) {
+		
+		if (!needsCompaction(sfiles))
+			return null;
+		
+		// 1st: space amplification
+		long younger = 0;
+		for (int i = 0; i < sfiles.length - 1; i++)
+			younger += sfiles[i].getSize();
+		
+		if (younger * 100 >= (long) maxSpaceAmplification * sfiles[sfiles.length - 1].getSize())
+			return compaction(sfiles, 0, sfiles.length);
+		
+		// 2nd: a run of similar sizes
+		for (int from = 0; from <= sfiles.length - minWidth; from++) {
+			
+			long size = sfiles[from].getSize();
+			int to    = from + 1;
+			while (to < sfiles.length && to - from < maxWidth 
+					&& sfiles[to].getSize() * 100 <= size * (100 + sizeRatio)) {
+				size += sfiles[to].getSize();
+				to++;
+			}
+			
+			if (to - from >= minWidth)
+				return compaction(sfiles, from, to);
+		}
+		
+		// 3rd: just cut the number of SFiles
+		int width = Math.min(Math.max(sfiles.length - trigger + 2, minWidth), maxWidth);
+		
+		return compaction(sfiles, 0, Math.min(width, sfiles.length));
+	}
+	
+	private Compaction compaction(FSSFile[] sfiles, int from, int to) {
+		return new Compaction(new ArrayList<FSSFile>(Arrays.asList(sfiles).subList(from, to)), 
+				0, Long.MAX_VALUE, to == sfiles.length);
+	}
+}
@@ -0,0 +1,147 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.io;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.acaro.sketches.utils.Sizes;
+
+/**
+ *
+ * @author Claudio Martella
+ *
+ * A DataOutput writing to a growable byte[]. It's meant to be reused: serialize a
+ * Writable, read the bytes through getBuffer() and size(), reset() and start over.
+ * Used to know how big a record is before writing it somewhere else.
+ *
+ */
+public class ByteArrayWriter
+implements DataOutput {
+
+	private static final int DEFAULT_BUFFERSIZE = 4*1024;
+	private ByteBuffer buffer;
+
+	public ByteArrayWriter(int bufferSize) {
+		this.buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+	public ByteArrayWriter() {
+		this(DEFAULT_BUFFERSIZE);
+	}
+
+	public void write(int b) {
+		ensureCapacity(Sizes.SIZEOF_BYTE);
+		buffer.put((byte) b);
+	}
+
+	public void write(byte[] b) {
+		write(b, 0, b.length);
+	}
+
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(len);
+		buffer.put(b, off, len);
+	}
+
+	public void writeBoolean(boolean v) {
+		write(v == true ? 1 : 0);
+	}
+
+	public void writeByte(int v) {
+		write(v);
+	}
+
+	public void writeShort(int v) {
+		ensureCapacity(Sizes.SIZEOF_SHORT);
+		buffer.putShort((short) v);
+	}
+
+	public void writeChar(int v) {
+		ensureCapacity(Sizes.SIZEOF_CHAR);
+		buffer.putChar((char) v);
+	}
+
+	public void writeInt(int v) {
+		ensureCapacity(Sizes.SIZEOF_INT);
+		buffer.putInt(v);
+	}
+
+	public void writeLong(long v) {
+		ensureCapacity(Sizes.SIZEOF_LONG);
+		buffer.putLong(v);
+	}
+
+	public void writeFloat(float v) {
+		ensureCapacity(Sizes.SIZEOF_FLOAT);
+		buffer.putFloat(v);
+	}
+
+	public void writeDouble(double v) {
+		ensureCapacity(Sizes.SIZEOF_DOUBLE);
+		buffer.putDouble(v);
+	}
+
+	public void writeBytes(String s) {
+		write(s.getBytes());
+	}
+
+	public void writeChars(String s) {
+		int len = s.length();
+		for (int i = 0 ; i < len ; i++)
+			writeChar(s.charAt(i));
+	}
+
+	public void writeUTF(String s)
+	throws IOException {
+
+		byte[] b = s.getBytes("UTF-8");
+		writeShort((short) b.length);
+		write(b);
+	}
+
+	/**
+	 * @return the backing array, valid from 0 to size()
+	 */
+	public byte[] getBuffer() {
+		return buffer.array();
+	}
+
+	public int size() {
+		return buffer.position();
+	}
+
+	public ByteArrayWriter reset() {
+		buffer.clear();
+
+		return this;
+	}
+
+	private void ensureCapacity(int size) {
+		if (buffer.remaining() >= size)
+			return;
+
+		int capacity = buffer.capacity() << 1;
+		while (capacity - buffer.position() < size)
+			capacity <<= 1;
+
+		ByteBuffer grown = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		grown.put(buffer);
+		buffer = grown;
+	}
+}
@@ -0,0 +1,35 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.io;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a framed record is torn or doesn't match its checksum.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class CorruptedRecordException 
+extends IOException {
+
+	private static final long serialVersionUID = 2747364815427950381L;
+
+	public CorruptedRecordException(String error) {
+		super(error);
+	}
+}
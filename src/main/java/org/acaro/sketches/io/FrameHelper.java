@@ -0,0 +1,176 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import org.acaro.sketches.utils.Sizes;
+
+/**
+ * @author Claudio Martella
+ *
+ * Framing of the records in logfiles and SFiles. Every record carries its length
+ * and the CRC32 of its payload, so a torn write or a flipped bit is detected before
+ * the payload is decoded.
+ *
+ * +------+-----+-------+
+ * |   4  |  4  |   N   |
+ * |Length| CRC |Payload|
+ * +------+-----+-------+
+ *
+ * A length of 0 is never written, so zeroed (i.e. preallocated) space reads as a
+ * corrupted record as well. The CRC can be salted, i.e. XORed with a value that
+ * identifies the file, so that stale records left in a recycled file don't verify.
+ */
+
+public class FrameHelper {
+
+	public static final int HEADER_SIZE = Sizes.SIZEOF_INT + Sizes.SIZEOF_INT;
+	private static final ThreadLocal<ByteArrayWriter> scratch = new ThreadLocal<ByteArrayWriter>() {
+		protected ByteArrayWriter initialValue() {
+			return new ByteArrayWriter();
+		}
+	};
+
+	/**
+	 * Frames the record in a thread-local buffer. The buffer is valid until the next
+	 * call from the same thread.
+	 */
+	public static ByteArrayWriter frame(Writable o)
+	throws IOException {
+
+		return frame(o, 0);
+	}
+
+	public static ByteArrayWriter frame(Writable o, int salt)
+	throws IOException {
+
+		ByteArrayWriter writer = scratch.get().reset();
+		writer.writeLong(0); // room for the header
+		o.writeTo(writer);
+
+		int length = writer.size() - HEADER_SIZE;
+		ByteBuffer.wrap(writer.getBuffer())
+			.putInt(0, length)
+			.putInt(Sizes.SIZEOF_INT, checksum(writer.getBuffer(), HEADER_SIZE, length) ^ salt);
+
+		return writer;
+	}
+
+	/**
+	 * @return the number of bytes written, header included
+	 */
+	public static int write(Writable o, DataOutput out)
+	throws IOException {
+
+		ByteArrayWriter framed = frame(o);
+		out.write(framed.getBuffer(), 0, framed.size());
+
+		return framed.size();
+	}
+
+	/**
+	 * Reads and verifies a record.
+	 *
+	 * @param available the bytes that can belong to the record, header included
+	 * @return the payload
+	 * @throws CorruptedRecordException if the record is torn or doesn't match its checksum
+	 */
+	public static byte[] read(DataInput in, long available)
+	throws IOException {
+
+		if (available < HEADER_SIZE)
+			throw new CorruptedRecordException("not enough space for a header: " + available);
+
+		int length = in.readInt();
+		int crc    = in.readInt();
+
+		if (length <= 0 || length > available - HEADER_SIZE)
+			throw new CorruptedRecordException("illegal record length: " + length);
+
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+
+		if (checksum(payload, 0, length) != crc)
+			throw new CorruptedRecordException("checksum mismatch");
+
+		return payload;
+	}
+
+	/**
+	 * Verifies the record at the position of the buffer without copying it and moves
+	 * the position past it.
+	 *
+	 * @return the payload as a view of buffer
+	 * @throws CorruptedRecordException if the record is torn or doesn't match its checksum
+	 */
+	public static ByteBuffer read(ByteBuffer buffer)
+	throws CorruptedRecordException {
+
+		return read(buffer, 0);
+	}
+
+	public static ByteBuffer read(ByteBuffer buffer, int salt)
+	throws CorruptedRecordException {
+
+		if (buffer.remaining() < HEADER_SIZE)
+			throw new CorruptedRecordException("not enough space for a header: " + buffer.remaining());
+
+		int position = buffer.position();
+		int length   = buffer.getInt(position);
+		int crc      = buffer.getInt(position + Sizes.SIZEOF_INT);
+
+		if (length <= 0 || length > buffer.remaining() - HEADER_SIZE)
+			throw new CorruptedRecordException("illegal record length: " + length);
+
+		ByteBuffer payload = buffer.duplicate();
+		payload.position(position + HEADER_SIZE);
+		payload.limit(position + HEADER_SIZE + length);
+
+		if ((checksum(payload.duplicate()) ^ salt) != crc)
+			throw new CorruptedRecordException("checksum mismatch");
+
+		buffer.position(position + HEADER_SIZE + length);
+
+		return payload.slice();
+	}
+
+	public static int checksum(byte[] b, int off, int len) {
+		CRC32 crc = new CRC32();
+		crc.update(b, off, len);
+
+		return (int) crc.getValue();
+	}
+
+	private static int checksum(ByteBuffer b) {
+		if (b.hasArray())
+			return checksum(b.array(), b.arrayOffset() + b.position(), b.remaining());
+
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[Math.min(b.remaining(), 8192)];
+		while (b.hasRemaining()) {
+			int len = Math.min(chunk.length, b.remaining());
+			b.get(chunk, 0, len);
+			crc.update(chunk, 0, len);
+		}
+
+		return (int) crc.getValue();
+	}
+}
@@ -4,14 +4,18 @@ import java.io.DataInput;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
 
+/**
+ * DataInput over a ByteBuffer, usually a mapped one. Reads start at the buffer's
+ * position and move it.
+ */
 public class MappedSmartReader 
 implements DataInput {
 
-	private MappedByteBuffer buffer;
+	private ByteBuffer buffer;
 	
-	public MappedSmartReader(MappedByteBuffer buffer) {
+	public MappedSmartReader(ByteBuffer buffer) {
 		this.buffer = buffer;
 	}
 	
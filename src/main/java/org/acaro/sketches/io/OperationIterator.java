@@ -0,0 +1,37 @@
+/*Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.acaro.sketches.operation.Operation;
+
+/**
+ * Sequential read of Operations sorted by key, like FSSFileIterator. It doesn't 
+ * implement Iterator, to be able to throw IOException.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public interface OperationIterator 
+extends Closeable {
+
+	public boolean hasNext();
+	public Operation next() throws IOException;
+	public void close() throws IOException;
+}
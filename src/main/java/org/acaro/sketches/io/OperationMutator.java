@@ -2,11 +2,17 @@ package org.acaro.sketches.io;
 
 import java.io.IOException;
 
+import org.acaro.sketches.logfiles.Durability;
 import org.acaro.sketches.operation.Operation;
+import org.acaro.sketches.operation.OperationBatch;
 
 public interface OperationMutator {
 	public void put(byte[] key, Operation sketch) throws IOException;
+	public void put(byte[] key, Operation sketch, Durability durability) throws IOException;
 	public void delete(byte[] key) throws IOException;
+	public void delete(byte[] key, Durability durability) throws IOException;
+	public void write(OperationBatch batch) throws IOException;
+	public void write(OperationBatch batch, Durability durability) throws IOException;
 	public void flush() throws IOException;
 	public long getSize();
 }
@@ -1,14 +1,20 @@
 package org.acaro.sketches.io;
 
+import java.io.Closeable;
 import java.io.IOException;
 
 import org.acaro.sketches.operation.Operation;
 import org.acaro.sketches.sfile.SFile;
 
 public interface OperationReader 
-extends Comparable<OperationReader> {
+extends Comparable<OperationReader>, Closeable {
 	
 	public Operation get(byte[] key) throws IOException;
+	/**
+	 * @return the Operations with startKey <= key < endKey, sorted by key. A null
+	 * bound means unbounded.
+	 */
+	public OperationIterator scan(byte[] startKey, byte[] endKey) throws IOException;
 	public long getSize();
 	public boolean isCompactable();
 	public void close() throws IOException;
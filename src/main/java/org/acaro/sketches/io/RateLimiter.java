@@ -0,0 +1,133 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package org.acaro.sketches.io;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.acaro.sketches.utils.Configuration;
+
+/**
+ * Token bucket shared by the writers of the background work, scribing and 
+ * compaction, so they don't take the whole disk from the reads. It lets through 
+ * sketches.io.ratelimit MB per second (default: 0, unlimited), with bursts of up 
+ * to sketches.io.ratelimit.burst KB (default: 1024).
+ * 
+ * When the background work falls behind it can be boosted: the rate is multiplied
+ * by sketches.io.ratelimit.boost (default: 4) until it catches up.
+ * 
+ * A write bigger than the tokens available goes through anyway and leaves the 
+ * bucket in debt, the next ones wait for it to be paid back. Writers wait in the 
+ * order they asked.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class RateLimiter {
+
+	private final long rate;
+	private final long burst;
+	private final int boost;
+	private boolean boosted = false;
+	// can go negative
+	private double tokens;
+	private long lastRefill;
+	
+	private static class RateLimiterHolder {
+		public static final RateLimiter INSTANCE = new RateLimiter(
+				Configuration.getConf().getInt("sketches.io.ratelimit", 0) * 1024L * 1024L,
+				Configuration.getConf().getInt("sketches.io.ratelimit.burst", 1024) * 1024L,
+				Configuration.getConf().getInt("sketches.io.ratelimit.boost", 4));
+	}
+	
+	public static RateLimiter getLimiter() {
+		return RateLimiterHolder.INSTANCE;
+	}
+	
+	/**
+	 * @param rate bytes per second, 0 for unlimited
+	 * @param burst bytes
+	 */
+	public RateLimiter(long rate, long burst, int boost) {
+		this.rate       = rate;
+		this.burst      = Math.max(burst, 1);
+		this.boost      = Math.max(boost, 1);
+		this.tokens     = this.burst;
+		this.lastRefill = System.nanoTime();
+	}
+	
+	/**
+	 * Waits until bytes can be written.
+	 */
+	public void acquire(long bytes) 
+	throws InterruptedIOException {
+		
+		if (!isEnabled() || bytes <= 0)
+			return;
+		
+		long wait;
+		synchronized (this) {
+			refill();
+			tokens -= bytes;
+			wait = tokens < 0 ? (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / getRate()) : 0;
+		}
+		
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for " + bytes + " bytes");
+			}
+		}
+	}
+	
+	public synchronized void setBoosted(boolean boosted) {
+		if (this.boosted == boosted)
+			return;
+		
+		// what was earned so far is earned at the old rate
+		refill();
+		this.boosted = boosted;
+	}
+	
+	public synchronized boolean isBoosted() {
+		return this.boosted;
+	}
+	
+	public boolean isEnabled() {
+		return rate > 0;
+	}
+	
+	/**
+	 * @return the current rate in bytes per second
+	 */
+	public synchronized long getRate() {
+		return boosted ? rate * boost : rate;
+	}
+	
+	public String toString() {
+		return "RateLimiter rate: " + getRate() + " burst: " + burst + " boosted: " + isBoosted();
+	}
+	
+	private void refill() {
+		long now = System.nanoTime();
+		
+		tokens     = Math.min(burst, tokens + (double) (now - lastRefill) * getRate() / TimeUnit.SECONDS.toNanos(1));
+		lastRefill = now;
+	}
+}
@@ -43,6 +43,8 @@ implements DataOutput {
 	private static final int MAX_WRITE_RETRIES = 3;
 	private FileChannel channel;
 	private ByteBuffer buffer;
+	// null if the writes are not limited
+	private RateLimiter limiter;
 
 	public SmartWriter(FileChannel channel, int bufferSize) {
 		this.channel = channel;
@@ -237,6 +239,15 @@ implements DataOutput {
 	public FileChannel getChannel() {
 		return this.channel;
 	}
+	
+	/*
+	 * Every flush of the buffer waits for the limiter.
+	 */
+	public SmartWriter setRateLimiter(RateLimiter limiter) {
+		this.limiter = limiter;
+		
+		return this;
+	}
 
 	private void flushBuffer() 
 	throws IOException {
@@ -252,6 +263,9 @@ implements DataOutput {
 		int retry = MAX_WRITE_RETRIES;
 		int ret;
 
+		if (limiter != null)
+			limiter.acquire(buffer.remaining());
+		
 		while (buffer.remaining() > 0 && retry > 0) {
 			ret = channel.write(buffer);
 			if (ret == 0)
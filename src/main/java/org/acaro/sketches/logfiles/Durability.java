@@ -0,0 +1,36 @@
+/*Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.logfiles;
+
+/**
+ * @author Claudio Martella
+ *
+ * How far a write to a Logfile has to go before the call returns.
+ *
+ * NONE:  the record is in the Logfile's buffer, it reaches the disk with the next
+ *        flush (i.e. the Flusher) or when the buffer fills up.
+ * FLUSH: the record has been handed to the OS, it survives a crash of the JVM.
+ * FSYNC: the record has been forced to the device, it survives a crash of the OS.
+ *
+ */
+
+public enum Durability {
+	NONE, FLUSH, FSYNC;
+
+	public static Durability parse(String durability) {
+		return valueOf(durability.trim().toUpperCase());
+	}
+}
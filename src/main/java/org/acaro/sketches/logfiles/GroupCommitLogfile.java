@@ -0,0 +1,616 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.logfiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.acaro.sketches.io.ByteArrayWriter;
+import org.acaro.sketches.io.FrameHelper;
+import org.acaro.sketches.io.Writable;
+import org.acaro.sketches.utils.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Logfile with a lock-free multi-producer append path and group commit.
+ *
+ * Writers serialize and frame (see FrameHelper) their record on their own, reserve its space in a direct ring
+ * buffer with an atomic fetch-and-add on the log position and copy it there, all in
+ * parallel. A record is published once all the records before it are, so the
+ * published part of the log is always contiguous. A background flusher drains the
+ * published regions to the channel in order and, when someone asked for FSYNC,
+ * forces the channel once for everything drained so far. Writers waiting for their
+ * Durability are released together at the end of each round. Writers that don't
+ * want to wait get a future instead (see writeAsync()), completed at the end of the
+ * round that makes their record durable. The futures are completed by a pool of
+ * sketches.logfile.committhreads threads (default: 1) shared by all the logs, so
+ * their listeners never run in the flusher.
+ *
+ * Records bigger than the ring are copied in pieces while the flusher drains it.
+ * The ring size is set by sketches.logfile.buffersize (KB, default: 8MB).
+ *
+ * The log is written in preallocated segments (see LogSegments). A writer whose
+ * record doesn't fit in the current segment reserves the rest of it as well and
+ * seals it. The rest is published in pieces the ring can hold, like a big record. 
+ * The flusher moves to the next segment, which has been preallocated in the 
+ * meantime, and syncs and closes the full one.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public class GroupCommitLogfile
+implements Logfile {
+
+	private static final Logger logger = LoggerFactory.getLogger(GroupCommitLogfile.class);
+	private static final int MAX_WRITE_RETRIES = 3;
+	private static final long FLUSHER_PARK_NANOS = 10 * 1000 * 1000;
+	private final LogSegments segments = LogSegments.getSegments();
+	private final String filename;
+	private final Durability durability;
+	private final ByteBuffer ring;
+	private final int capacity;
+	private final int segmentSize;
+	private final int salt;
+	private final byte[] seal;
+	// offset of log position 0 in the sequence of segments
+	private final long base;
+	// the segment being written and the next one, used only by the flusher
+	private FileChannel current;
+	private int currentSegment;
+	private Future<FileChannel> next;
+	// next free position
+	private final AtomicLong reserved  = new AtomicLong(0);
+	// everything before it is in the ring
+	private final AtomicLong published = new AtomicLong(0);
+	// highest position someone wants synced
+	private final AtomicLong syncRequested = new AtomicLong(0);
+	// everything before them has been written to the channel and forced, respectively
+	private volatile long flushed = 0;
+	private volatile long synced  = 0;
+	private volatile boolean closed        = false;
+	private volatile boolean flusherParked = false;
+	private volatile IOException failure;
+	private final ReentrantLock commitLock = new ReentrantLock();
+	private final Condition committed      = commitLock.newCondition();
+	// futures of writeAsync(), by log position
+	private final Queue<Commit> flushCommits = new PriorityBlockingQueue<Commit>();
+	private final Queue<Commit> syncCommits  = new PriorityBlockingQueue<Commit>();
+	private final Runnable completer = new Runnable() {
+		public void run() {
+			completeCommits();
+		}
+	};
+	private final Thread flusher;
+	
+	private static class CommitExecutorHolder {
+		public static final Executor INSTANCE = Executors.newFixedThreadPool(
+				Math.max(Configuration.getConf().getInt("sketches.logfile.committhreads", 1), 1),
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("LogfileCommits-%d").build());
+	}
+
+	public GroupCommitLogfile(String filename, Durability durability)
+	throws IOException {
+
+		this(filename, durability, 0);
+	}
+
+	/*
+	 * Starts writing the log from the segment, the previous ones are left untouched.
+	 */
+	public GroupCommitLogfile(String filename, Durability durability, int segment)
+	throws IOException {
+
+		this.filename       = filename;
+		this.durability     = durability;
+		this.capacity       = Configuration.getConf().getInt("sketches.logfile.buffersize", 8192) * 1024;
+		this.ring           = ByteBuffer.allocateDirect(capacity);
+		this.segmentSize    = segments.getSegmentSize();
+		this.salt           = LogSegments.getSalt(filename);
+		this.seal           = LogSegments.seal(salt).array();
+		this.base           = (long) segment * segmentSize;
+		this.current        = segments.create(filename, segment);
+		this.currentSegment = segment;
+		this.next           = segments.preallocate(filename, segment + 1);
+		this.flusher        = new Thread(new Flusher(), "Flusher-" + filename);
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	public Logfile write(Writable o)
+	throws IOException {
+
+		return write(o, durability);
+	}
+
+	public Logfile write(Writable o, Durability durability)
+	throws IOException {
+
+		checkOpen();
+
+		ByteArrayWriter record = FrameHelper.frame(o, salt);
+		if (record.size() > segmentSize)
+			throw new IOException("Record of " + record.size() + " bytes doesn't fit in a segment of " + filename);
+
+		long end = append(record.getBuffer(), record.size());
+
+		if (durability == Durability.FSYNC)
+			waitForSync(end);
+		else if (durability == Durability.FLUSH)
+			waitForFlush(end);
+
+		return this;
+	}
+
+	/*
+	 * Appends the record like write() does, but doesn't wait for the Durability: the 
+	 * future is done once the record has reached it. Many writes can be in flight 
+	 * without a thread waiting for each of them.
+	 */
+	public ListenableFuture<Void> writeAsync(Writable o, Durability durability)
+	throws IOException {
+
+		checkOpen();
+
+		ByteArrayWriter record = FrameHelper.frame(o, salt);
+		if (record.size() > segmentSize)
+			throw new IOException("Record of " + record.size() + " bytes doesn't fit in a segment of " + filename);
+
+		long end = append(record.getBuffer(), record.size());
+
+		if (durability == Durability.NONE)
+			return Futures.immediateFuture(null);
+
+		Commit commit = new Commit(end);
+		if (durability == Durability.FSYNC) {
+			syncCommits.add(commit);
+			requestSync(end);
+		} else {
+			flushCommits.add(commit);
+			if (flusherParked)
+				LockSupport.unpark(flusher);
+		}
+
+		// the flusher could have gone past it before we queued it
+		completeCommits();
+
+		return commit.future;
+	}
+
+	public Logfile flush()
+	throws IOException {
+
+		waitForFlush(reserved.get());
+
+		return this;
+	}
+
+	public Logfile sync()
+	throws IOException {
+
+		waitForSync(reserved.get());
+
+		return this;
+	}
+
+	public void close()
+	throws IOException {
+
+		if (closed)
+			return;
+
+		try {
+			sync();
+		} finally {
+			closed = true;
+			LockSupport.unpark(flusher);
+			try {
+				flusher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			current.close();
+			closeNext();
+		}
+	}
+
+	public String getName() {
+		return this.filename;
+	}
+
+	public Durability getDurability() {
+		return this.durability;
+	}
+
+	/*
+	 * Reserves the space for the record and copies it into the ring.
+	 *
+	 * @return the log position right after the record
+	 */
+	private long append(byte[] record, int length)
+	throws IOException {
+
+		long start = reserve(length);
+		long end   = start + length;
+
+		if (length <= capacity) {
+
+			// wait for the region to be drained by the flusher, copy, wait for our turn
+			while (end - flushed > capacity)
+				backoff();
+			copy(start, record, 0, length);
+			while (published.get() != start)
+				backoff();
+			publish(end);
+
+		} else {
+
+			// too big to fit, we need to hold our turn while the flusher drains it
+			while (published.get() != start)
+				backoff();
+
+			int copied = 0;
+			while (copied < length) {
+				long position = start + copied;
+				while (position - flushed >= capacity)
+					backoff();
+
+				int piece = (int) Math.min(length - copied, capacity - (position - flushed));
+				copy(position, record, copied, piece);
+				copied += piece;
+				publish(start + copied);
+			}
+		}
+
+		return end;
+	}
+
+	/*
+	 * Reserves the space for the record. If the record doesn't fit in the current
+	 * segment, the rest of the segment is reserved too, sealed and published. The 
+	 * rest can be bigger than the ring, so it's published while the flusher drains it.
+	 *
+	 * @return the log position of the record
+	 */
+	private long reserve(int length)
+	throws IOException {
+
+		long start, position;
+		do {
+			start    = reserved.get();
+			position = start;
+
+			long left = segmentSize - (base + start) % segmentSize;
+			if (length > left)
+				position += left;
+
+		} while (!reserved.compareAndSet(start, position + length));
+
+		if (position > start) {
+
+			long sealed = start;
+			// too little room for a seal means the end of the segment anyway
+			if (position - start >= seal.length) {
+				while (start + seal.length - flushed > capacity)
+					backoff();
+				copy(start, seal, 0, seal.length);
+				sealed += seal.length;
+			}
+			while (published.get() != start)
+				backoff();
+			publish(sealed);
+
+			while (sealed < position) {
+				while (sealed - flushed >= capacity)
+					backoff();
+				sealed += Math.min(position - sealed, capacity - (sealed - flushed));
+				publish(sealed);
+			}
+		}
+
+		return position;
+	}
+
+	private void copy(long position, byte[] record, int offset, int length) {
+		ByteBuffer buffer = ring.duplicate();
+		int index = (int) (position % capacity);
+		int first = Math.min(length, capacity - index);
+
+		buffer.position(index);
+		buffer.put(record, offset, first);
+		if (first < length) { // wrap around
+			buffer.position(0);
+			buffer.put(record, offset + first, length - first);
+		}
+	}
+
+	private void publish(long position) {
+		published.set(position);
+		if (flusherParked)
+			LockSupport.unpark(flusher);
+	}
+
+	private void waitForFlush(long position)
+	throws IOException {
+
+		await(position, false);
+	}
+
+	private void waitForSync(long position)
+	throws IOException {
+
+		requestSync(position);
+		await(position, true);
+	}
+
+	private void requestSync(long position) {
+
+		while (true) {
+			long requested = syncRequested.get();
+			if (requested >= position || syncRequested.compareAndSet(requested, position))
+				break;
+		}
+		if (flusherParked)
+			LockSupport.unpark(flusher);
+	}
+
+	private void await(long position, boolean sync)
+	throws IOException {
+
+		commitLock.lock();
+		try {
+
+			while ((sync ? synced : flushed) < position) {
+				checkFailure();
+				committed.awaitUninterruptibly();
+			}
+
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	private void completeCommits() {
+
+		if (failure != null) {
+			failCommits(flushCommits);
+			failCommits(syncCommits);
+		} else {
+			completeCommits(flushCommits, flushed);
+			completeCommits(syncCommits, synced);
+		}
+	}
+
+	private void completeCommits(Queue<Commit> commits, long position) {
+
+		Commit commit;
+		while ((commit = commits.peek()) != null && commit.position <= position)
+			if (commits.remove(commit))
+				commit.future.set(null);
+	}
+
+	private void failCommits(Queue<Commit> commits) {
+
+		Commit commit;
+		while ((commit = commits.poll()) != null)
+			commit.future.setException(new IOException("Logfile " + filename + " failed", failure));
+	}
+
+	private void closeNext()
+	throws IOException {
+
+		try {
+			next.get().close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.warn("Couldn't preallocate the next segment of " + filename, e.getCause());
+		}
+	}
+
+	private void checkOpen()
+	throws IOException {
+
+		if (closed)
+			throw new IOException("Logfile " + filename + " is closed");
+		checkFailure();
+	}
+
+	private void checkFailure()
+	throws IOException {
+
+		if (failure != null)
+			throw new IOException("Logfile " + filename + " failed", failure);
+	}
+
+	private void backoff()
+	throws IOException {
+
+		checkFailure();
+		Thread.yield();
+	}
+
+	/*
+	 * Drains the published regions of the ring to the channel, in order, and forces
+	 * the channel when somebody is waiting for a sync.
+	 */
+	private class Flusher
+	implements Runnable {
+
+		@Override
+		public void run() {
+
+			try {
+
+				while (!closed || flushed < published.get() || isSyncPending(published.get())) {
+
+					long target  = published.get();
+					boolean sync = isSyncPending(target);
+
+					if (target == flushed && !sync) {
+						park();
+						continue;
+					}
+
+					if (target > flushed)
+						drain(flushed, target);
+					flushed = target;
+
+					if (sync) {
+						current.force(false);
+						synced = target;
+					}
+
+					signalCommitted();
+				}
+
+			} catch (Throwable e) {
+				// whatever kills us, the writers waiting on us must fail rather than hang
+				logger.error("Error while flushing " + filename, e);
+				failure = e instanceof IOException ? (IOException) e : new IOException("Flusher of " + filename + " died", e);
+				signalCommitted();
+			}
+		}
+
+		private void park() {
+			flusherParked = true;
+			// check again, a writer could have published before seeing us parked
+			if (!closed && published.get() == flushed && !isSyncPending(flushed))
+				LockSupport.parkNanos(FLUSHER_PARK_NANOS);
+			flusherParked = false;
+		}
+
+		/*
+		 * There's something to force only if it has been published already.
+		 */
+		private boolean isSyncPending(long target) {
+			return syncRequested.get() > synced && target > synced;
+		}
+
+		private void drain(long from, long to)
+		throws IOException {
+
+			int index = (int) (from % capacity);
+			int first = (int) Math.min(to - from, capacity - index);
+
+			write(index, first, base + from);
+			if (first < to - from) // wrap around
+				write(0, (int) (to - from - first), base + from + first);
+		}
+
+		private void write(int index, int length, long position)
+		throws IOException {
+
+			ByteBuffer buffer = ring.duplicate();
+			buffer.limit(index + length);
+			buffer.position(index);
+
+			int retry = MAX_WRITE_RETRIES;
+			while (buffer.hasRemaining() && retry > 0) {
+
+				// never write past the end of a segment
+				FileChannel channel = segment(position);
+				long offset         = position % segmentSize;
+				ByteBuffer piece    = buffer.duplicate();
+				piece.limit((int) Math.min(buffer.limit(), buffer.position() + segmentSize - offset));
+
+				int ret = channel.write(piece, offset);
+				buffer.position(piece.position());
+				position += ret;
+				if (ret == 0)
+					retry--;
+				else
+					retry = MAX_WRITE_RETRIES;
+			}
+
+			if (buffer.hasRemaining())
+				throw new IOException("couldn't write the buffer after " + MAX_WRITE_RETRIES + " tries");
+		}
+
+		/*
+		 * The channel of the segment that contains position. Segments are written in
+		 * order, the full one is synced and closed when we move to the next.
+		 */
+		private FileChannel segment(long position)
+		throws IOException {
+
+			int segment = (int) (position / segmentSize);
+			if (segment == currentSegment)
+				return current;
+
+			current.force(false);
+			current.close();
+
+			try {
+				current = next.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the next segment of " + filename);
+			} catch (ExecutionException e) {
+				throw new IOException("Couldn't preallocate the next segment of " + filename, e.getCause());
+			}
+
+			currentSegment = segment;
+			next = segments.preallocate(filename, segment + 1);
+
+			return current;
+		}
+
+		private void signalCommitted() {
+			commitLock.lock();
+			try {
+				committed.signalAll();
+			} finally {
+				commitLock.unlock();
+			}
+			
+			if (!flushCommits.isEmpty() || !syncCommits.isEmpty())
+				CommitExecutorHolder.INSTANCE.execute(completer);
+		}
+	}
+
+	private static class Commit
+	implements Comparable<Commit> {
+
+		private final long position;
+		private final SettableFuture<Void> future = SettableFuture.create();
+
+		public Commit(long position) {
+			this.position = position;
+		}
+
+		public int compareTo(Commit other) {
+			return position < other.position ? -1 : (position > other.position ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.logfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.acaro.sketches.io.FrameHelper;
+import org.acaro.sketches.utils.Configuration;
+import org.acaro.sketches.utils.FSUtils;
+import org.acaro.sketches.utils.FilenamesFactory;
+import org.acaro.sketches.utils.Sizes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A logfile is written as a sequence of fixed-size segments, named after the log
+ * (see FilenamesFactory). Segments are allocated in full before they are written,
+ * so appends never change the size of a file and syncing them doesn't have to
+ * update its metadata. The next segment is preallocated in background while the
+ * current one is being written.
+ *
+ * A record never spans two segments. When it doesn't fit in what is left of a
+ * segment, the rest of the segment is skipped and marked by a seal: a frame header
+ * with length 0 and a checksum derived from the log's salt.
+ *
+ * Once the Memstore of a log has been scribed, its segments are kept for reuse
+ * instead of being deleted: a new log takes them over by renaming them. Records are
+ * salted with a value derived from the log name (see FrameHelper), so what is left
+ * of the previous log doesn't verify anymore.
+ *
+ * Segments are sketches.logfile.segmentsize MB (default: 64MB), at most
+ * sketches.logfile.recycledsegments (default: 4) are kept for reuse and
+ * sketches.logfile.zerofill (default: true) writes zeros in new segments instead
+ * of just setting their length, so the filesystem allocates them for real.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public class LogSegments {
+
+	private static final Logger logger = LoggerFactory.getLogger(LogSegments.class);
+	private static final int SEAL = 0x5EA1ED00;
+	private static final int ZEROFILL_CHUNK = 1024 * 1024;
+	private final int segmentSize;
+	private final int maxRecycled;
+	private final boolean zeroFill;
+	// guarded by this
+	private final LinkedList<String> recycled = new LinkedList<String>();
+	private final ExecutorService preallocator = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("LogPreallocator-%d").build());
+
+	private static class LogSegmentsHolder {
+		public static final LogSegments INSTANCE = new LogSegments(Configuration.getConf());
+	}
+
+	public static LogSegments getSegments() {
+		return LogSegmentsHolder.INSTANCE;
+	}
+
+	private LogSegments(Configuration conf) {
+		this.segmentSize = conf.getInt("sketches.logfile.segmentsize", 64) * 1024 * 1024;
+		this.maxRecycled = conf.getInt("sketches.logfile.recycledsegments", 4);
+		this.zeroFill    = conf.getBoolean("sketches.logfile.zerofill", true);
+	}
+
+	public int getSegmentSize() {
+		return this.segmentSize;
+	}
+
+	/**
+	 * Opens the segment of the log, reusing a recycled one if there's any.
+	 */
+	public FileChannel create(String logFilename, int segment)
+	throws IOException {
+
+		File file  = new File(FilenamesFactory.getLogSegmentFilename(logFilename, segment));
+		String old = pollRecycled();
+
+		if (old != null && !new File(old).renameTo(file)) {
+			logger.warn("Couldn't recycle log segment " + old);
+			old = null;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel  = raf.getChannel();
+		try {
+
+			if (old == null && zeroFill)
+				zeroFill(channel);
+			else if (raf.length() != segmentSize)
+				raf.setLength(segmentSize);
+
+			// the length is set once for all, from now on data syncs are enough
+			channel.force(true);
+
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		return channel;
+	}
+
+	/**
+	 * Creates the segment of the log in background.
+	 */
+	public Future<FileChannel> preallocate(final String logFilename, final int segment) {
+		return preallocator.submit(new Callable<FileChannel>() {
+			public FileChannel call()
+			throws IOException {
+
+				return create(logFilename, segment);
+			}
+		});
+	}
+
+	/**
+	 * Keeps the segments of the log for reuse, or deletes them if enough are kept
+	 * already. The log must be closed.
+	 */
+	public void recycle(String logFilename) {
+		for (String segment: list(logFilename)) {
+
+			synchronized (this) {
+				if (recycled.size() < maxRecycled) {
+					recycled.add(segment);
+					continue;
+				}
+			}
+
+			FSUtils.delete(new File(segment));
+		}
+	}
+
+	/**
+	 * @return the filenames of the segments of the log, in order
+	 */
+	public static List<String> list(String logFilename) {
+		List<String> segments = new ArrayList<String>();
+
+		String segment;
+		while (new File(segment = FilenamesFactory.getLogSegmentFilename(logFilename, segments.size())).exists())
+			segments.add(segment);
+
+		return segments;
+	}
+
+	/**
+	 * The salt of the records of the log. It is always odd while SEAL is even, so 
+	 * salt ^ SEAL is never 0 and zeroed space is never mistaken for a seal.
+	 */
+	public static int getSalt(String logFilename) {
+		return new File(logFilename).getName().hashCode() | 1;
+	}
+
+	public static ByteBuffer seal(int salt) {
+		ByteBuffer seal = ByteBuffer.allocate(FrameHelper.HEADER_SIZE);
+		seal.putInt(0, 0);
+		seal.putInt(Sizes.SIZEOF_INT, salt ^ SEAL);
+
+		return seal;
+	}
+
+	public static boolean isSeal(ByteBuffer header, int salt) {
+		return header.remaining() >= FrameHelper.HEADER_SIZE
+			&& header.getInt(header.position()) == 0
+			&& header.getInt(header.position() + Sizes.SIZEOF_INT) == (salt ^ SEAL);
+	}
+
+	private synchronized String pollRecycled() {
+		return recycled.poll();
+	}
+
+	private void zeroFill(FileChannel channel)
+	throws IOException {
+
+		ByteBuffer zeros = ByteBuffer.allocateDirect(ZEROFILL_CHUNK);
+		long position    = 0;
+
+		channel.truncate(0);
+		while (position < segmentSize) {
+			zeros.clear();
+			zeros.limit((int) Math.min(ZEROFILL_CHUNK, segmentSize - position));
+			while (zeros.hasRemaining())
+				position += channel.write(zeros, position);
+		}
+	}
+}
@@ -34,6 +34,8 @@ import org.acaro.sketches.utils.Sizes;
  * |Dirty Byte|Sketch|...|Sketch|
  * +----------+------+   +------+ 
  * 
+ * Each Sketch is framed with its length and checksum by FrameHelper.
+ * 
  */
 
 
@@ -45,6 +47,7 @@ extends Closeable {
 	public static final int HEADER_SIZE = Sizes.SIZEOF_BYTE;
 	
 	public Logfile write(Writable o) throws IOException;
+	public Logfile write(Writable o, Durability durability) throws IOException;
 	public Logfile flush() throws IOException;
 	public Logfile sync() throws IOException;
 	public String getName();
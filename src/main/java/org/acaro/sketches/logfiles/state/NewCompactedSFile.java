@@ -3,33 +3,36 @@ package org.acaro.sketches.logfiles.state;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class NewCompactedSFile 
 implements StateOperation {
 
-	private String younger;
-	private String older;
-	private String filename;
+	// youngest first
+	private List<String> compacted;
+	private List<String> filenames;
+	private int level;
 	private boolean major;
 
 	private NewCompactedSFile() { }
 
-	public NewCompactedSFile(String younger, String older, String filename, boolean major) {
-		this.younger  = younger;
-		this.older    = older;
-		this.filename = filename;
-		this.major    = major;
+	public NewCompactedSFile(List<String> compacted, List<String> filenames, int level, boolean major) {
+		this.compacted = compacted;
+		this.filenames = filenames;
+		this.level     = level;
+		this.major     = major;
 	}
 	
 	@Override
 	public void readFrom(DataInput in) 
 	throws IOException {
 
-		this.younger  = in.readUTF();
-		this.older    = in.readUTF();
-		this.filename = in.readUTF();
-		this.major    = in.readBoolean();
+		this.compacted = readList(in);
+		this.filenames = readList(in);
+		this.level     = in.readInt();
+		this.major     = in.readBoolean();
 	}
 
 	@Override
@@ -37,12 +40,50 @@ implements StateOperation {
 	throws IOException {
 
 		out.writeByte(NEWCOMPACTED_SFILE);
-		out.writeUTF(younger);
-		out.writeUTF(older);
-		out.writeUTF(filename);
+		writeList(compacted, out);
+		writeList(filenames, out);
+		out.writeInt(level);
 		out.writeBoolean(major);
 	}
 	
+	public List<String> getCompacted() {
+		return this.compacted;
+	}
+	
+	public List<String> getFilenames() {
+		return this.filenames;
+	}
+	
+	/**
+	 * @return the level of the new SFiles, to be restored with FSSFile.setLevel()
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+	
+	public boolean isMajor() {
+		return this.major;
+	}
+	
+	private static List<String> readList(DataInput in) 
+	throws IOException {
+		
+		int n = in.readInt();
+		List<String> list = new ArrayList<String>(n);
+		for (int i = 0; i < n; i++)
+			list.add(in.readUTF());
+		
+		return list;
+	}
+	
+	private static void writeList(List<String> list, DataOutput out) 
+	throws IOException {
+		
+		out.writeInt(list.size());
+		for (String s: list)
+			out.writeUTF(s);
+	}
+	
 	public static NewCompactedSFile read(DataInput in) 
 	throws IOException {
 		
@@ -4,7 +4,9 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.acaro.sketches.io.SmartReader;
 import org.acaro.sketches.io.SmartWriter;
@@ -22,13 +24,17 @@ public class StateLog {
 		
 	}
 	
-	public synchronized void compacted(String older, String younger, String fresh) 
+	public synchronized void compacted(List<String> compacted, List<String> fresh, int level) 
 	throws IOException {
 		
 		log.writeByte(COMPACTED);
-		log.writeUTF(fresh);
-		log.writeUTF(older);
-		log.writeUTF(younger);
+		log.writeInt(fresh.size());
+		for (String sfile: fresh)
+			log.writeUTF(sfile);
+		log.writeInt(level);
+		log.writeInt(compacted.size());
+		for (String sfile: compacted)
+			log.writeUTF(sfile);
 		sync();
 	}
 
@@ -75,6 +81,8 @@ public class StateLog {
 		private ArrayList<String> ssfiles  = new ArrayList<String>();
 		// the list of logfiles that need to be converted into ssfiles before we're ready
 		private ArrayList<String> scribees = new ArrayList<String>();
+		// the level of the compacted ssfiles, the scribed ones are in level 0
+		private Map<String, Integer> levels = new HashMap<String, Integer>();
 		private boolean replayed = false;
 		
 		public StateLogReader(String filename) 
@@ -95,6 +103,12 @@ public class StateLog {
 			return this.scribees;
 		}
 		
+		public int getLevel(String sfile) {
+			Integer level = levels.get(sfile);
+			
+			return level == null ? 0 : level;
+		}
+		
 		public void replay() 
 		throws IOException {
 			
@@ -143,18 +157,28 @@ public class StateLog {
 					case COMPACTED: 
 					{ 
 						/*
-						 * new ssfile as a result of the compaction of two ssfiles. the file should
-						 * be put with the other ssfiles and the two compacted ssfiles removed. the
-						 * process who wrote this log entry should have deleted the two ssfiles.
+						 * new ssfiles as a result of the compaction of a run of ssfiles. the files should
+						 * be put with the other ssfiles and the compacted ssfiles removed. the
+						 * process who wrote this log entry should have deleted the compacted ssfiles.
 						 */
 
-						String f1 = reader.readUTF();
-						String f2 = reader.readUTF();
-						String f3 = reader.readUTF();
+						int n = reader.readInt();
+						List<String> fresh = new ArrayList<String>(n);
+						for (int i = 0; i < n; i++)
+							fresh.add(reader.readUTF()); // new ssfile filename
+						
+						int level = reader.readInt();
+						for (String f: fresh) {
+							ssfiles.add(f);
+							levels.put(f, level);
+						}
 						
-						ssfiles.add(f1); // new ssfile filename
-						ssfiles.remove(f2); // first ssfile filename
-						ssfiles.remove(f3); // second ssfile filename
+						n = reader.readInt();
+						for (int i = 0; i < n; i++) {
+							String f = reader.readUTF(); // compacted ssfile filename
+							ssfiles.remove(f);
+							levels.remove(f);
+						}
 
 						break;
 					} 
@@ -0,0 +1,497 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.memstore;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.acaro.sketches.operation.Delete;
+import org.acaro.sketches.operation.Operation;
+import org.acaro.sketches.operation.Update;
+import org.acaro.sketches.utils.MurmurHash3;
+import org.acaro.sketches.utils.Sizes;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * OperationMap that keeps keys and values off-heap. Every put appends the Operation
+ * to large direct ByteBuffer slabs and the hash index, open-addressed like the one of
+ * OperationHashMap, holds only the 64bit hash of the key and the address of the record
+ * in the arena. No Operation survives a put on the heap, they're decoded back on get()
+ * and while scribing, so a multi-GB Memstore costs the old generation just its index.
+ *
+ * Overwritten records stay in the arena until the whole Memstore is dropped.
+ * Remember to size -XX:MaxDirectMemorySize accordingly.
+ *
+ * Record:
+ * +----+---------+--------+----------+---+-----+
+ * |  1 |    8    |   2    |    4     | N |  N  |
+ * |Type|Timestamp|Key size|Value size|Key|Value|
+ * +----+---------+--------+----------+---+-----+
+ *
+ * Address:
+ * +-----------+--------------+
+ * |     32    |      32      |
+ * |Slab number|Offset in slab|
+ * +-----------+--------------+
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public class ArenaOperationMap
+implements OperationMap {
+
+	private static final float LOAD_FACTOR = 0.75f;
+	private static final int KEY_OFFSET    = Sizes.SIZEOF_BYTE+Sizes.SIZEOF_LONG+Sizes.SIZEOF_SHORT+Sizes.SIZEOF_INT;
+	private final Segment[] segments;
+	private final int segmentShift;
+	private final int slabSize;
+	// copy-on-write, slabs are added rarely and read on every access
+	private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+	// null until the first put
+	private volatile Slab current;
+
+	public ArenaOperationMap(int initialCapacity, int concurrencyLevel, int slabSize) {
+		Preconditions.checkArgument(initialCapacity >= 0, "negative initial capacity");
+		Preconditions.checkArgument(concurrencyLevel > 0, "concurrency level should be positive");
+		Preconditions.checkArgument(slabSize > KEY_OFFSET, "slab size too small: %s", slabSize);
+
+		int bits = 0;
+		while ((1 << bits) < concurrencyLevel && bits < 16)
+			bits++;
+
+		this.segments     = new Segment[1 << bits];
+		this.segmentShift = 64 - bits;
+		this.slabSize     = slabSize;
+
+		int perSegment = initialCapacity / segments.length + 1;
+		for (int i = 0; i < segments.length; i++)
+			segments[i] = new Segment(perSegment);
+	}
+
+	public Operation get(byte[] key) {
+		long hash = hash(key);
+		long address = segmentFor(hash).get(hash, key);
+
+		return address == -1 ? null : decode(address);
+	}
+
+	public Operation put(Operation o) {
+		long hash    = hash(o.getKey());
+		long address = append(o);
+		long old     = segmentFor(hash).put(hash, o.getKey(), address);
+
+		return old == -1 ? null : decode(old);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment: segments)
+			size += segment.size();
+
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes allocated off-heap
+	 */
+	public long getArenaSize() {
+		long size = 0;
+		for (ByteBuffer slab: slabs)
+			size += slab.capacity();
+
+		return size;
+	}
+
+	public Iterator<Operation> iterator() {
+		return new AddressIterator(addresses());
+	}
+
+	/*
+	 * Sorts just the addresses, comparing the keys where they are in the arena, and
+	 * decodes the Operations one by one while they're consumed.
+	 */
+	public Iterable<Operation> sorted() {
+		final long[] addresses = addresses();
+		sort(addresses, new long[addresses.length], 0, addresses.length);
+
+		return new Iterable<Operation>() {
+			public Iterator<Operation> iterator() {
+				return new AddressIterator(addresses);
+			}
+		};
+	}
+
+	public Iterable<Operation> range(byte[] startKey, byte[] endKey) {
+		long[] all = addresses();
+
+		int n = 0;
+		for (long address: all)
+			if ((startKey == null || compareKey(address, startKey) >= 0)
+					&& (endKey == null || compareKey(address, endKey) < 0))
+				all[n++] = address;
+
+		final long[] addresses = Arrays.copyOf(all, n);
+		sort(addresses, new long[addresses.length], 0, addresses.length);
+
+		return new Iterable<Operation>() {
+			public Iterator<Operation> iterator() {
+				return new AddressIterator(addresses);
+			}
+		};
+	}
+
+	public synchronized void clear() {
+		for (Segment segment: segments)
+			segment.clear();
+
+		this.slabs   = new ByteBuffer[0];
+		this.current = null;
+	}
+
+	private long[] addresses() {
+		long[] addresses = new long[size()];
+
+		int n = 0;
+		for (Segment segment: segments)
+			n = segment.copyAddresses(addresses, n);
+
+		if (n < addresses.length) {
+			long[] shrunk = new long[n];
+			System.arraycopy(addresses, 0, shrunk, 0, n);
+			addresses = shrunk;
+		}
+
+		return addresses;
+	}
+
+	private Segment segmentFor(long hash) {
+		return segments.length == 1 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+	}
+
+	private static long hash(byte[] key) {
+		long hash = MurmurHash3.hash(key);
+
+		return hash == 0 ? 1 : hash; // 0 is reserved for free slots
+	}
+
+	/* +-------------------+
+	 * | Arena starts here |
+	 * +-------------------+
+	 */
+
+	private long append(Operation o) {
+		byte[] key   = o.getKey();
+		byte[] value = o.getValue();
+		int length   = KEY_OFFSET + key.length + (value == null ? 0 : value.length);
+
+		long address = allocate(length);
+		ByteBuffer buffer = slabs[slabOf(address)].duplicate();
+		buffer.position(offsetOf(address));
+		buffer.put(value == null ? Operation.DELETE : Operation.UPDATE);
+		buffer.putLong(o.getTimestamp());
+		buffer.putShort((short) key.length);
+		buffer.putInt(value == null ? -1 : value.length);
+		buffer.put(key);
+		if (value != null)
+			buffer.put(value);
+
+		return address;
+	}
+
+	/*
+	 * Bump-pointer allocation. Threads race on the top of the current slab and the
+	 * one that overflows it rolls a new one, the first put rolls the first one. 
+	 * Records bigger than a slab get a slab of their own.
+	 */
+	private long allocate(int length) {
+
+		if (length > slabSize)
+			return address(newSlab(length).number, 0);
+
+		while (true) {
+			Slab slab  = current;
+			if (slab == null) {
+				roll(null);
+				continue;
+			}
+			
+			int offset = slab.top.getAndAdd(length);
+
+			if (offset <= slabSize - length)
+				return address(slab.number, offset);
+
+			roll(slab);
+		}
+	}
+
+	private synchronized void roll(Slab full) {
+		if (current == full)
+			current = newSlab(slabSize);
+	}
+
+	private synchronized Slab newSlab(int size) {
+		ByteBuffer[] grown = new ByteBuffer[slabs.length + 1];
+		System.arraycopy(slabs, 0, grown, 0, slabs.length);
+		grown[slabs.length] = ByteBuffer.allocateDirect(size);
+		slabs = grown;
+
+		return new Slab(slabs.length - 1);
+	}
+
+	private Operation decode(long address) {
+		ByteBuffer slab = slabs[slabOf(address)];
+		int offset = offsetOf(address);
+
+		byte type   = slab.get(offset);
+		long ts     = slab.getLong(offset + Sizes.SIZEOF_BYTE);
+		short kl    = slab.getShort(offset + Sizes.SIZEOF_BYTE + Sizes.SIZEOF_LONG);
+		int vl      = slab.getInt(offset + Sizes.SIZEOF_BYTE + Sizes.SIZEOF_LONG + Sizes.SIZEOF_SHORT);
+		byte[] key  = new byte[kl];
+
+		ByteBuffer buffer = slab.duplicate();
+		buffer.position(offset + KEY_OFFSET);
+		buffer.get(key);
+
+		if (type == Operation.DELETE)
+			return new Delete(key, ts);
+
+		byte[] value = new byte[vl];
+		buffer.get(value);
+
+		return new Update(key, value, ts);
+	}
+
+	private boolean keyEquals(long address, byte[] key) {
+		ByteBuffer slab = slabs[slabOf(address)];
+		int offset = offsetOf(address);
+
+		if (slab.getShort(offset + Sizes.SIZEOF_BYTE + Sizes.SIZEOF_LONG) != key.length)
+			return false;
+
+		offset += KEY_OFFSET;
+		for (int i = 0; i < key.length; i++)
+			if (slab.get(offset + i) != key[i])
+				return false;
+
+		return true;
+	}
+
+	private int compareKeys(long left, long right) {
+		ByteBuffer lslab = slabs[slabOf(left)];
+		ByteBuffer rslab = slabs[slabOf(right)];
+		int loff = offsetOf(left);
+		int roff = offsetOf(right);
+		int ll   = lslab.getShort(loff + Sizes.SIZEOF_BYTE + Sizes.SIZEOF_LONG);
+		int rl   = rslab.getShort(roff + Sizes.SIZEOF_BYTE + Sizes.SIZEOF_LONG);
+
+		loff += KEY_OFFSET;
+		roff += KEY_OFFSET;
+		for (int i = 0; i < ll && i < rl; i++) {
+			int a = lslab.get(loff + i) & 0xff;
+			int b = rslab.get(roff + i) & 0xff;
+			if (a != b)
+				return a - b;
+		}
+
+		return ll - rl;
+	}
+
+	private int compareKey(long address, byte[] key) {
+		ByteBuffer slab = slabs[slabOf(address)];
+		int offset = offsetOf(address);
+		int length = slab.getShort(offset + Sizes.SIZEOF_BYTE + Sizes.SIZEOF_LONG);
+
+		offset += KEY_OFFSET;
+		for (int i = 0; i < length && i < key.length; i++) {
+			int a = slab.get(offset + i) & 0xff;
+			int b = key[i] & 0xff;
+			if (a != b)
+				return a - b;
+		}
+
+		return length - key.length;
+	}
+
+	/*
+	 * Top-down merge sort of the addresses by key, [from, to).
+	 */
+	private void sort(long[] addresses, long[] tmp, int from, int to) {
+		if (to - from < 2)
+			return;
+
+		int middle = (from + to) >>> 1;
+		sort(addresses, tmp, from, middle);
+		sort(addresses, tmp, middle, to);
+
+		if (compareKeys(addresses[middle - 1], addresses[middle]) <= 0)
+			return; // already in order
+
+		System.arraycopy(addresses, from, tmp, from, to - from);
+		for (int i = from, l = from, r = middle; i < to; i++) {
+			if (r >= to || (l < middle && compareKeys(tmp[l], tmp[r]) <= 0))
+				addresses[i] = tmp[l++];
+			else
+				addresses[i] = tmp[r++];
+		}
+	}
+
+	private static long address(int slab, int offset) {
+		return ((long) slab << 32) | (offset & 0xffffffffL);
+	}
+
+	private static int slabOf(long address) {
+		return (int) (address >>> 32);
+	}
+
+	private static int offsetOf(long address) {
+		return (int) address;
+	}
+
+	private static class Slab {
+
+		private final int number;
+		private final AtomicInteger top = new AtomicInteger(0);
+
+		public Slab(int number) {
+			this.number = number;
+		}
+	}
+
+	/* +-------------------+
+	 * | Index starts here |
+	 * +-------------------+
+	 */
+
+	private class Segment {
+
+		private long[] hashes;
+		private long[] addresses;
+		private int count;
+		private int threshold;
+
+		public Segment(int capacity) {
+			int size = 2;
+			while (size * LOAD_FACTOR < capacity && size < (1 << 30))
+				size <<= 1;
+
+			allocate(size);
+		}
+
+		public synchronized long get(long hash, byte[] key) {
+			int mask = hashes.length - 1;
+
+			for (int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask)
+				if (hashes[i] == hash && keyEquals(addresses[i], key))
+					return addresses[i];
+
+			return -1;
+		}
+
+		public synchronized long put(long hash, byte[] key, long address) {
+			int mask = hashes.length - 1;
+			int i    = (int) hash & mask;
+
+			for (; hashes[i] != 0; i = (i + 1) & mask) {
+				if (hashes[i] == hash && keyEquals(addresses[i], key)) {
+					long old     = addresses[i];
+					addresses[i] = address;
+
+					return old;
+				}
+			}
+
+			hashes[i]    = hash;
+			addresses[i] = address;
+			if (++count > threshold)
+				rehash();
+
+			return -1;
+		}
+
+		public synchronized int size() {
+			return count;
+		}
+
+		public synchronized int copyAddresses(long[] dst, int from) {
+			for (int i = 0; i < hashes.length && from < dst.length; i++)
+				if (hashes[i] != 0)
+					dst[from++] = addresses[i];
+
+			return from;
+		}
+
+		public synchronized void clear() {
+			allocate(2);
+			count = 0;
+		}
+
+		private void rehash() {
+			long[] oldHashes    = hashes;
+			long[] oldAddresses = addresses;
+
+			allocate(oldHashes.length << 1);
+
+			int mask = hashes.length - 1;
+			for (int j = 0; j < oldHashes.length; j++) {
+				if (oldHashes[j] == 0)
+					continue;
+
+				int i = (int) oldHashes[j] & mask;
+				while (hashes[i] != 0)
+					i = (i + 1) & mask;
+
+				hashes[i]    = oldHashes[j];
+				addresses[i] = oldAddresses[j];
+			}
+		}
+
+		private void allocate(int size) {
+			this.hashes    = new long[size];
+			this.addresses = new long[size];
+			this.threshold = (int) (size * LOAD_FACTOR);
+		}
+	}
+
+	private class AddressIterator
+	implements Iterator<Operation> {
+
+		private final long[] addresses;
+		private int next = 0;
+
+		public AddressIterator(long[] addresses) {
+			this.addresses = addresses;
+		}
+
+		public boolean hasNext() {
+			return next < addresses.length;
+		}
+
+		public Operation next() {
+			if (!hasNext()) throw new NoSuchElementException();
+
+			return decode(addresses[next++]);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("AddressIterator doesn't support remove()");
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.memstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.acaro.sketches.io.CorruptedRecordException;
+import org.acaro.sketches.io.FrameHelper;
+import org.acaro.sketches.logfiles.LogSegments;
+import org.acaro.sketches.operation.Operation;
+import org.acaro.sketches.operation.OperationHelper;
+import org.acaro.sketches.utils.Configuration;
+import org.acaro.sketches.utils.FSUtils;
+import org.acaro.sketches.utils.Sizes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rebuilds a Memstore from its logfile after a crash.
+ *
+ * The segments of the log (see LogSegments) are replayed in order. Each one is
+ * mapped in windows of up to 1GB and split in chunks of about
+ * sketches.recovery.chunksize KB (default: 4MB) at record boundaries, following
+ * just the length in the frame headers. Chunks are verified and decoded by
+ * sketches.recovery.threads threads (default: one per core) while the splitter
+ * goes on, and then applied in log order straight into the Memstore, without
+ * logging them again.
+ *
+ * A segment goes on in the next one when it is full or sealed. Replay stops at
+ * the first record that is torn, doesn't match its checksum or belongs to a
+ * previous user of a recycled segment: the segment is sealed there, the ones after
+ * it are deleted and the Memstore goes on with a new segment.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public class LogfileReplayer {
+
+	private static final Logger logger = LoggerFactory.getLogger(LogfileReplayer.class);
+	private static final long WINDOW_SIZE = 1L << 30;
+	private final String filename;
+	private final int salt;
+	private final int chunkSize;
+	private final int threads;
+
+	public LogfileReplayer(String filename) {
+		Configuration conf = Configuration.getConf();
+
+		this.filename  = filename;
+		this.salt      = LogSegments.getSalt(filename);
+		this.chunkSize = conf.getInt("sketches.recovery.chunksize", 4096) * 1024;
+		this.threads   = conf.getInt("sketches.recovery.threads", Runtime.getRuntime().availableProcessors());
+	}
+
+	public Memstore replay()
+	throws IOException {
+
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<String> segments = LogSegments.list(filename);
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		int segment = 0;
+
+		try {
+
+			while (segment < segments.size() && replay(segments.get(segment++), executor, chunks));
+
+		} finally {
+			executor.shutdown();
+		}
+
+		// whatever follows the end of the log must never be replayed
+		for (int i = segment; i < segments.size(); i++) {
+			logger.warn("Deleting segment " + segments.get(i) + " past the end of " + filename);
+			FSUtils.delete(new File(segments.get(i)));
+		}
+
+		Memstore memory = new Memstore(filename, segment);
+		int loaded = 0;
+		for (Chunk chunk: chunks) {
+			for (Operation o: chunk.operations)
+				memory.replay(o);
+
+			loaded += chunk.operations.size();
+			if (chunk.isCorrupted())
+				break;
+		}
+
+		logger.info(loaded + " operations replayed from " + filename + " in " + (System.currentTimeMillis() - start) + "ms");
+
+		return memory;
+	}
+
+	/*
+	 * Decodes the segment and seals it where the log ends, if it ends here.
+	 *
+	 * @return whether the log goes on in the next segment
+	 */
+	private boolean replay(String segment, ExecutorService executor, List<Chunk> chunks)
+	throws IOException {
+
+		FileChannel channel = new RandomAccessFile(segment, "rw").getChannel();
+		try {
+
+			// all the chunks have to be decoded before we can touch the file
+			List<Chunk> decoded = new ArrayList<Chunk>();
+			for (Future<Chunk> future: split(channel, segment, executor))
+				decoded.add(get(future));
+
+			long validEnd     = 0;
+			boolean corrupted = false;
+			for (Chunk chunk: decoded) {
+				chunks.add(chunk);
+				validEnd  = chunk.start + chunk.validLength;
+				corrupted = chunk.isCorrupted();
+				if (corrupted)
+					break;
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(FrameHelper.HEADER_SIZE);
+			while (header.hasRemaining() && channel.read(header, validEnd + header.position()) > 0);
+			header.flip();
+
+			if (!corrupted && (header.remaining() < FrameHelper.HEADER_SIZE || LogSegments.isSeal(header, salt)))
+				return true;
+
+			logger.warn("Logfile " + filename + " ends in " + segment + " at " + validEnd + " of " + channel.size());
+			if (header.remaining() == FrameHelper.HEADER_SIZE) {
+				channel.write(LogSegments.seal(salt), validEnd);
+				channel.force(false);
+			}
+
+			return false;
+
+		} finally {
+			channel.close();
+		}
+	}
+
+	/*
+	 * Walks the frame headers and submits a decoding task for each chunk. A chunk
+	 * never spans two windows. Splitting stops at the first header that makes no
+	 * sense, the decoders check the rest.
+	 */
+	private List<Future<Chunk>> split(FileChannel channel, String segment, ExecutorService executor)
+	throws IOException {
+
+		List<Future<Chunk>> chunks = new ArrayList<Future<Chunk>>();
+		long size     = channel.size();
+		long position = 0;
+
+		while (position < size) {
+
+			long windowSize = Math.min(WINDOW_SIZE, size - position);
+			int first = readLength(channel, position);
+			if (first > windowSize && first <= size - position)
+				windowSize = first; // a record bigger than a window gets one of its own
+
+			MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position, windowSize);
+			int chunkStart = 0;
+			int offset     = 0;
+			int length;
+
+			while ((length = recordLength(window, offset)) > 0) {
+				offset += length;
+				if (offset - chunkStart >= chunkSize) {
+					chunks.add(submit(executor, segment, window, position, chunkStart, offset));
+					chunkStart = offset;
+				}
+			}
+
+			if (offset > chunkStart)
+				chunks.add(submit(executor, segment, window, position, chunkStart, offset));
+
+			// garbage, or a torn record at the end of the log
+			if (offset == 0 || position + windowSize == size)
+				break;
+
+			position += offset;
+		}
+
+		return chunks;
+	}
+
+	/*
+	 * @return the length of the framed record at position, header included.
+	 */
+	private int readLength(FileChannel channel, long position)
+	throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(Sizes.SIZEOF_INT);
+		while (header.hasRemaining() && channel.read(header, position + header.position()) > 0);
+
+		if (header.hasRemaining())
+			return -1;
+
+		int length = header.getInt(0);
+		if (length <= 0 || length > Integer.MAX_VALUE - FrameHelper.HEADER_SIZE)
+			return -1;
+
+		return FrameHelper.HEADER_SIZE + length;
+	}
+
+	/*
+	 * @return the length of the framed record at offset, header included, or -1 if
+	 * it doesn't fit in the window.
+	 */
+	private int recordLength(ByteBuffer window, int offset) {
+		if (window.limit() - offset < FrameHelper.HEADER_SIZE)
+			return -1;
+
+		int length = window.getInt(offset);
+		if (length <= 0 || length > window.limit() - offset - FrameHelper.HEADER_SIZE)
+			return -1;
+
+		return FrameHelper.HEADER_SIZE + length;
+	}
+
+	private Future<Chunk> submit(ExecutorService executor, String segment, ByteBuffer window, long base, int from, int to) {
+		ByteBuffer buffer = window.duplicate();
+		buffer.limit(to);
+		buffer.position(from);
+
+		return executor.submit(new Decoder(segment, base + from, buffer.slice()));
+	}
+
+	private Chunk get(Future<Chunk> future)
+	throws IOException {
+
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while replaying " + filename);
+		} catch (ExecutionException e) {
+			throw new IOException("Error while replaying " + filename, e.getCause());
+		}
+	}
+
+	private static class Chunk {
+
+		private final long start;
+		private final List<Operation> operations = new ArrayList<Operation>();
+		private long validLength = 0;
+		private String error;
+
+		public Chunk(long start) {
+			this.start = start;
+		}
+
+		public boolean isCorrupted() {
+			return error != null;
+		}
+	}
+
+	private class Decoder
+	implements Callable<Chunk> {
+
+		private final String segment;
+		private final ByteBuffer buffer;
+		private final Chunk chunk;
+
+		public Decoder(String segment, long start, ByteBuffer buffer) {
+			this.segment = segment;
+			this.buffer  = buffer;
+			this.chunk   = new Chunk(start);
+		}
+
+		@Override
+		public Chunk call()
+		throws IOException {
+
+			while (buffer.hasRemaining()) {
+				try {
+					chunk.operations.addAll(OperationHelper.readLogRecord(FrameHelper.read(buffer, salt)));
+					chunk.validLength = buffer.position();
+				} catch (CorruptedRecordException e) {
+					chunk.error = e.getMessage();
+					logger.warn("Logfile " + filename + " corrupted in " + segment + " at " + (chunk.start + chunk.validLength) + ": " + chunk.error);
+					break;
+				}
+			}
+
+			return chunk;
+		}
+	}
+}
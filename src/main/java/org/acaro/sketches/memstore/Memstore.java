@@ -16,62 +16,142 @@
 package org.acaro.sketches.memstore;
 
 import java.io.IOException;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.acaro.sketches.io.OperationIterator;
 import org.acaro.sketches.io.OperationReader;
 import org.acaro.sketches.io.OperationMutator;
-import org.acaro.sketches.logfiles.BufferedLogfile;
+import org.acaro.sketches.logfiles.Durability;
+import org.acaro.sketches.logfiles.GroupCommitLogfile;
+import org.acaro.sketches.logfiles.LogSegments;
 import org.acaro.sketches.operation.Delete;
 import org.acaro.sketches.operation.Operation;
+import org.acaro.sketches.operation.OperationBatch;
 import org.acaro.sketches.sfile.SFile;
 import org.acaro.sketches.utils.Configuration;
 import org.acaro.sketches.utils.FilenamesFactory;
 
-import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * The Memstore is where the written data is kept before it is flushed to disk. 
- * It builds around a NonBlockingHashMap for the data, an AtomicLong that 
+ * It builds around an OperationMap for the data, that keeps only the latest
+ * Operation for each key (compared by content), an AtomicLong that 
  * counts the total amout of data passed through the store and an AtomicLong for
  * the timestamp of oldest entry.
  * 
+ * The OperationMap is chosen through sketches.memstore.type: "hash" (default) keeps
+ * the Operations on the heap, "arena" keeps them off-heap in direct slabs of
+ * sketches.memstore.slabsize MB (default: 16MB) and "sorted" keeps them on the heap
+ * sorted by key, so scribing doesn't need to sort.
+ * 
+ * Writes are logged with the Durability set by sketches.logfile.durability 
+ * (none, flush or fsync, default: none) unless the caller asks for a specific one.
+ * The log is written in preallocated segments that are recycled once the Memstore 
+ * has been scribed.
+ * 
+ * The write that takes the Memstore past sketches.memstore.maxsize MB (default: 
+ * 64MB) tells its FlushListener, once, that it's time to scribe it.
+ * 
  * @author Claudio Martella
  *
  */
 public class Memstore 
 implements OperationReader, OperationMutator {
 
-	private final int initialCapacity = Configuration.getConf().getInt("sketches.memstore.initialcapacity", 100000);
-	private final NonBlockingHashMap<byte[], Operation> map = new NonBlockingHashMap<byte[], Operation>(initialCapacity);
+	private final OperationMap map      = createMap(Configuration.getConf());
 	private final AtomicLong size      = new AtomicLong(0);
 	private final AtomicLong timestamp = new AtomicLong(0);
-	private BufferedLogfile log;
+	private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+	// the writes in flight, plus one until the Memstore is frozen
+	private final AtomicInteger writers = new AtomicInteger(1);
+	private final CountDownLatch frozen = new CountDownLatch(1);
+	private final AtomicBoolean freezing = new AtomicBoolean(false);
+	private final long maxSize = Configuration.getConf().getInt("sketches.memstore.maxsize", 64) * 1024L * 1024L;
+	private volatile FlushListener listener;
+	private GroupCommitLogfile log;
+	
+	/*
+	 * Called by the writer that fills the Memstore, it must return quickly.
+	 */
+	public interface FlushListener {
+		public void flushRequested(Memstore memstore);
+	}
 	
 	public Memstore() 
 	throws IOException { 
 		
-		this.log = new BufferedLogfile(FilenamesFactory.getLogFilename());
+		this.log = new GroupCommitLogfile(FilenamesFactory.getLogFilename(), getDefaultDurability());
 	}
 	
-	public Memstore(String logFilename) 
+	/*
+	 * Goes on with the log from the segment, the previous ones have been replayed.
+	 */
+	public Memstore(String logFilename, int segment) 
 	throws IOException { 
 	
-		this.log = new BufferedLogfile(logFilename, false, true);
+		this.log = new GroupCommitLogfile(logFilename, getDefaultDurability(), segment);
 	}
 	
 	public Operation get(byte[] key) {
 		return map.get(key);
 	}
 
+	/*
+	 * The range is taken when the call is made, later writes may or may not be seen.
+	 */
+	public OperationIterator scan(byte[] startKey, byte[] endKey) {
+		final Iterator<Operation> range = map.range(startKey, endKey).iterator();
+		
+		return new OperationIterator() {
+			
+			public boolean hasNext() {
+				return range.hasNext();
+			}
+			
+			public Operation next() {
+				return range.next();
+			}
+			
+			public void close() { }
+		};
+	}
+
 	public void put(byte[] key, Operation o) 
+	throws IOException {
+	
+		put(key, o, log.getDurability());
+	}
+	
+	public void put(byte[] key, Operation o, Durability durability) 
+	throws IOException {
+	
+		updateSize(o.getSize());
+		updateTimestamp(o.getTimestamp());
+
+		log.write(o, durability);
+		map.put(o);
+	}
+	
+	/*
+	 * Like put(), but doesn't wait for the Durability: the Operation is visible to the
+	 * readers right away, the future is done once it has reached the Durability.
+	 */
+	public ListenableFuture<Void> putAsync(Operation o, Durability durability) 
 	throws IOException {
 	
 		updateSize(o.getSize());
 		updateTimestamp(o.getTimestamp());
 
-		log.write(o);
-		map.put(key, o);
+		ListenableFuture<Void> future = log.writeAsync(o, durability);
+		map.put(o);
+		
+		return future;
 	}
 	
 	public void delete(byte[] key) 
@@ -80,16 +160,129 @@ implements OperationReader, OperationMutator {
 		put(key, new Delete(key));
 	}
 	
+	public void delete(byte[] key, Durability durability) 
+	throws IOException {
+	
+		put(key, new Delete(key), durability);
+	}
+	
+	public void write(OperationBatch batch) 
+	throws IOException {
+	
+		write(batch, log.getDurability());
+	}
+	
+	/*
+	 * The whole batch is logged as a single record, so it's replayed either entirely 
+	 * or not at all. Readers can see it applied only in part while it's going on.
+	 */
+	public void write(OperationBatch batch, Durability durability) 
+	throws IOException {
+	
+		if (batch.isEmpty())
+			return;
+		
+		for (Operation o: batch) {
+			updateSize(o.getSize());
+			updateTimestamp(o.getTimestamp());
+		}
+		
+		log.write(batch, durability);
+		for (Operation o: batch)
+			map.put(o);
+	}
+	
+	/*
+	 * Like write(), but doesn't wait for the Durability, like putAsync().
+	 */
+	public ListenableFuture<Void> writeAsync(OperationBatch batch, Durability durability) 
+	throws IOException {
+	
+		if (batch.isEmpty())
+			return Futures.immediateFuture(null);
+		
+		for (Operation o: batch) {
+			updateSize(o.getSize());
+			updateTimestamp(o.getTimestamp());
+		}
+		
+		ListenableFuture<Void> future = log.writeAsync(batch, durability);
+		for (Operation o: batch)
+			map.put(o);
+		
+		return future;
+	}
+	
+	/*
+	 * Applies an Operation read back from the log, without logging it again.
+	 */
+	void replay(Operation o) {
+		updateSize(o.getSize());
+		updateTimestamp(o.getTimestamp());
+		
+		map.put(o);
+	}
+	
 	public void flush() 
 	throws IOException {
 	
 		log.flush();
 	}
 
+	/**
+	 * To be called before writing, and endWrite() after.
+	 * 
+	 * @return false if the Memstore has been frozen and doesn't take writes anymore
+	 */
+	public boolean startWrite() {
+		
+		while (true) {
+			int current = writers.get();
+			if (current == 0)
+				return false;
+			if (writers.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+	
+	public void endWrite() {
+		if (writers.decrementAndGet() == 0)
+			frozen.countDown();
+	}
+	
+	/*
+	 * Stops taking writes and waits for the ones in flight. Call it after the Memstore
+	 * has been swapped out, again if the wait was interrupted.
+	 */
+	public void freeze() 
+	throws InterruptedException {
+		
+		if (freezing.compareAndSet(false, true))
+			endWrite();
+		frozen.await();
+	}
+
 	public long getSize() {
 		return this.size.get();
 	}
 	
+	public boolean isFull() {
+		return getSize() >= maxSize;
+	}
+	
+	/*
+	 * If the Memstore is full already, for example after a replay, the listener is
+	 * told right away.
+	 */
+	public void setFlushListener(FlushListener listener) {
+		this.listener = listener;
+		checkFull();
+	}
+	
+	public Durability getDurability() {
+		return log.getDurability();
+	}
+	
 	public String getName() {
 		return log.getName();
 	}
@@ -107,6 +300,15 @@ implements OperationReader, OperationMutator {
 
 		// log should flush & sync
 		log.close();
+		map.clear();
+	}
+	
+	/*
+	 * Hands the segments of the log over to the next Memstores. Call it only once
+	 * the Memstore has been scribed and closed.
+	 */
+	public void recycle() {
+		LogSegments.getSegments().recycle(log.getName());
 	}
 
 	public int compareTo(OperationReader other) {
@@ -120,12 +322,55 @@ implements OperationReader, OperationMutator {
 			return 0;
 	}
 
-	public Map<byte[], Operation> getMap() {
+	/*
+	 * The latest Operation for each key, in no particular order.
+	 */
+	public Iterable<Operation> getOperations() {
 		return this.map;
 	}
 	
+	/*
+	 * The latest Operation for each key, sorted by key. Call it only when the
+	 * Memstore doesn't receive writes anymore.
+	 */
+	public Iterable<Operation> getSortedOperations() {
+		return this.map.sorted();
+	}
+	
+	public int getNumberOfItems() {
+		return this.map.size();
+	}
+	
+	private static Durability getDefaultDurability() {
+		return Durability.parse(Configuration.getConf().getString("sketches.logfile.durability", "none"));
+	}
+	
+	private static OperationMap createMap(Configuration conf) {
+		int initialCapacity  = conf.getInt("sketches.memstore.initialcapacity", 100000);
+		int concurrencyLevel = conf.getInt("sketches.memstore.concurrencylevel", 64);
+		String type          = conf.getString("sketches.memstore.type", "hash");
+		
+		if ("arena".equals(type))
+			return new ArenaOperationMap(initialCapacity, concurrencyLevel, 
+					conf.getInt("sketches.memstore.slabsize", 16) * 1024 * 1024);
+		else if ("sorted".equals(type))
+			return new SkipListOperationMap();
+		else if ("hash".equals(type))
+			return new OperationHashMap(initialCapacity, concurrencyLevel);
+		else
+			throw new IllegalArgumentException("unknown memstore type " + type);
+	}
+	
 	private void updateSize(int valueSize) {
-		size.addAndGet(valueSize);
+		if (size.addAndGet(valueSize) >= maxSize)
+			checkFull();
+	}
+	
+	private void checkFull() {
+		FlushListener l = listener;
+		
+		if (l != null && isFull() && flushRequested.compareAndSet(false, true))
+			l.flushRequested(this);
 	}
 	
 	private void updateTimestamp(long ts) {
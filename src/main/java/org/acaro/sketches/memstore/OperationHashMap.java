@@ -0,0 +1,288 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.memstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.acaro.sketches.operation.Operation;
+import org.acaro.sketches.operation.OperationComparator;
+import org.acaro.sketches.utils.MurmurHash3;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * Concurrent hash table from keys to Operations built for byte[] keys. Keys are hashed
+ * with MurmurHash3 and compared by content, so a lookup with a fresh array finds what
+ * was put with another one and an overwrite replaces the older version.
+ *
+ * The table is split in segments, each one guarded by its own monitor. Every segment
+ * is open-addressed (linear probing) over two parallel arrays: the 64bit hashes of the
+ * keys and the Operations themselves (that carry their key), so a put doesn't allocate
+ * any entry object. There's no removal, a delete is just a Delete Operation stored in
+ * place of the old one.
+ *
+ * A hash of 0 marks a free slot.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public class OperationHashMap
+implements OperationMap {
+
+	private static final float LOAD_FACTOR = 0.75f;
+	private static final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+	private final Segment[] segments;
+	private final int segmentShift;
+
+	public OperationHashMap(int initialCapacity, int concurrencyLevel) {
+		Preconditions.checkArgument(initialCapacity >= 0, "negative initial capacity");
+		Preconditions.checkArgument(concurrencyLevel > 0, "concurrency level should be positive");
+
+		int bits = 0;
+		while ((1 << bits) < concurrencyLevel && bits < 16)
+			bits++;
+
+		this.segments     = new Segment[1 << bits];
+		this.segmentShift = 64 - bits;
+
+		int perSegment = initialCapacity / segments.length + 1;
+		for (int i = 0; i < segments.length; i++)
+			segments[i] = new Segment(perSegment);
+	}
+
+	public Operation get(byte[] key) {
+		long hash = hash(key);
+
+		return segmentFor(hash).get(hash, key);
+	}
+
+	/**
+	 * @return the Operation that was stored for the same key, or null
+	 */
+	public Operation put(Operation o) {
+		long hash = hash(o.getKey());
+
+		return segmentFor(hash).put(hash, o);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment: segments)
+			size += segment.size();
+
+		return size;
+	}
+
+	/**
+	 * Iterates over the latest version of each key. Iteration is weakly consistent:
+	 * Operations put while iterating may or may not be returned.
+	 */
+	public Iterator<Operation> iterator() {
+		return new OperationHashMapIterator();
+	}
+
+	public Iterable<Operation> sorted() {
+		ArrayList<Operation> sorted = new ArrayList<Operation>(size());
+		for (Operation o: this)
+			sorted.add(o);
+
+		Collections.sort(sorted, new OperationComparator());
+
+		return sorted;
+	}
+
+	public Iterable<Operation> range(byte[] startKey, byte[] endKey) {
+		ArrayList<Operation> range = new ArrayList<Operation>();
+		for (Operation o: this)
+			if ((startKey == null || comparator.compare(o.getKey(), startKey) >= 0)
+					&& (endKey == null || comparator.compare(o.getKey(), endKey) < 0))
+				range.add(o);
+
+		Collections.sort(range, new OperationComparator());
+
+		return range;
+	}
+
+	public void clear() {
+		for (Segment segment: segments)
+			segment.clear();
+	}
+
+	private Segment segmentFor(long hash) {
+		return segments.length == 1 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+	}
+
+	private static long hash(byte[] key) {
+		long hash = MurmurHash3.hash(key);
+
+		return hash == 0 ? 1 : hash; // 0 is reserved for free slots
+	}
+
+	private static class Segment {
+
+		private long[] hashes;
+		private Operation[] operations;
+		private int count;
+		private int threshold;
+
+		public Segment(int capacity) {
+			allocate(tableSizeFor(capacity));
+		}
+
+		public synchronized Operation get(long hash, byte[] key) {
+			int mask = hashes.length - 1;
+
+			for (int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask)
+				if (hashes[i] == hash && Arrays.equals(operations[i].getKey(), key))
+					return operations[i];
+
+			return null;
+		}
+
+		public synchronized Operation put(long hash, Operation o) {
+			byte[] key = o.getKey();
+			int mask   = hashes.length - 1;
+			int i      = (int) hash & mask;
+
+			for (; hashes[i] != 0; i = (i + 1) & mask) {
+				if (hashes[i] == hash && Arrays.equals(operations[i].getKey(), key)) {
+					Operation old = operations[i];
+					operations[i] = o;
+
+					return old;
+				}
+			}
+
+			hashes[i]     = hash;
+			operations[i] = o;
+			if (++count > threshold)
+				rehash();
+
+			return null;
+		}
+
+		public synchronized int size() {
+			return count;
+		}
+
+		public synchronized void clear() {
+			allocate(2);
+			count = 0;
+		}
+
+		public synchronized Operation at(int slot) {
+			return slot < operations.length ? operations[slot] : null;
+		}
+
+		public synchronized int capacity() {
+			return operations.length;
+		}
+
+		private void rehash() {
+			long[] oldHashes          = hashes;
+			Operation[] oldOperations = operations;
+
+			allocate(oldHashes.length << 1);
+
+			int mask = hashes.length - 1;
+			for (int j = 0; j < oldHashes.length; j++) {
+				if (oldHashes[j] == 0)
+					continue;
+
+				int i = (int) oldHashes[j] & mask;
+				while (hashes[i] != 0)
+					i = (i + 1) & mask;
+
+				hashes[i]     = oldHashes[j];
+				operations[i] = oldOperations[j];
+			}
+		}
+
+		private void allocate(int size) {
+			this.hashes     = new long[size];
+			this.operations = new Operation[size];
+			this.threshold  = (int) (size * LOAD_FACTOR);
+		}
+
+		private static int tableSizeFor(int capacity) {
+			int size = 2;
+			while (size * LOAD_FACTOR < capacity && size < (1 << 30))
+				size <<= 1;
+
+			return size;
+		}
+	}
+
+	/*
+	 * Walks the segments slot by slot. A concurrent rehash can make us skip or repeat
+	 * some Operations, which is fine for a frozen Memstore, the only one we iterate.
+	 */
+	private class OperationHashMapIterator
+	implements Iterator<Operation> {
+
+		private int segment = 0;
+		private int slot    = 0;
+		private Operation next;
+
+		public OperationHashMapIterator() {
+			advance();
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Operation next() {
+			if (!hasNext()) throw new NoSuchElementException();
+
+			Operation o = next;
+			advance();
+
+			return o;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("OperationHashMapIterator doesn't support remove()");
+		}
+
+		private void advance() {
+			next = null;
+
+			while (segment < segments.length) {
+				Segment s = segments[segment];
+				int capacity = s.capacity();
+
+				while (slot < capacity) {
+					Operation o = s.at(slot++);
+					if (o != null) {
+						next = o;
+						return;
+					}
+				}
+
+				segment++;
+				slot = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.memstore;
+
+import org.acaro.sketches.operation.Operation;
+
+/**
+ * The data structure behind a Memstore. It keeps the latest Operation for each key,
+ * with keys compared by content. Implementations must support concurrent put() and
+ * get(); sorted() is only called on a Memstore that doesn't receive writes anymore.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public interface OperationMap
+extends Iterable<Operation> {
+
+	public Operation get(byte[] key);
+
+	/**
+	 * @return the Operation that was stored for the same key, or null
+	 */
+	public Operation put(Operation o);
+
+	public int size();
+
+	/**
+	 * @return the Operations sorted by key, as an SFile expects them
+	 */
+	public Iterable<Operation> sorted();
+
+	/**
+	 * @return the Operations with startKey <= key < endKey, sorted by key. A null
+	 * bound means unbounded.
+	 */
+	public Iterable<Operation> range(byte[] startKey, byte[] endKey);
+
+	public void clear();
+}
@@ -0,0 +1,82 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.memstore;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.acaro.sketches.operation.Operation;
+
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * OperationMap that stays sorted by key while it's written. It builds around a
+ * lock-free ConcurrentSkipListMap ordered like the SFiles, so scribing is a single
+ * streaming pass over the map with no sort and no copy, and ranges of keys can be
+ * read in order.
+ *
+ * Puts cost O(log n) instead of the O(1) of the hash based maps.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public class SkipListOperationMap
+implements OperationMap {
+
+	private final ConcurrentSkipListMap<byte[], Operation> map =
+		new ConcurrentSkipListMap<byte[], Operation>(UnsignedBytes.lexicographicalComparator());
+
+	public Operation get(byte[] key) {
+		return map.get(key);
+	}
+
+	public Operation put(Operation o) {
+		return map.put(o.getKey(), o);
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public Iterator<Operation> iterator() {
+		return map.values().iterator();
+	}
+
+	public Iterable<Operation> sorted() {
+		return map.values();
+	}
+
+	/**
+	 * @return the Operations with startKey <= key < endKey, sorted by key. A null
+	 * bound means unbounded.
+	 */
+	public Iterable<Operation> range(byte[] startKey, byte[] endKey) {
+		ConcurrentNavigableMap<byte[], Operation> range = map;
+
+		if (startKey != null)
+			range = range.tailMap(startKey, true);
+		if (endKey != null)
+			range = range.headMap(endKey, false);
+
+		return range.values();
+	}
+
+	public void clear() {
+		map.clear();
+	}
+}
@@ -0,0 +1,97 @@
+/*Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.operation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.acaro.sketches.io.Writable;
+
+/**
+ *
+ * @author Claudio Martella
+ *
+ * A group of Operations that is written to the log as a single record, so it is
+ * replayed either as a whole or not at all.
+ *
+ * +----+-----+---------+   +---------+
+ * |  1 |  4  |    N    |   |    N    |
+ * |Type|Count|Operation|...|Operation|
+ * +----+-----+---------+   +---------+
+ */
+
+public class OperationBatch
+implements Writable, Iterable<Operation> {
+
+	public static final byte BATCH = 3;
+	private final List<Operation> operations = new ArrayList<Operation>();
+
+	public OperationBatch add(Operation o) {
+		operations.add(o);
+
+		return this;
+	}
+
+	public List<Operation> getOperations() {
+		return this.operations;
+	}
+
+	public int size() {
+		return operations.size();
+	}
+
+	public boolean isEmpty() {
+		return operations.isEmpty();
+	}
+
+	public void clear() {
+		operations.clear();
+	}
+
+	public Iterator<Operation> iterator() {
+		return operations.iterator();
+	}
+
+	public void readFrom(DataInput in)
+	throws IOException {
+
+		int count = in.readInt();
+		for (int i = 0; i < count; i++)
+			operations.add(OperationHelper.readOperation(in));
+	}
+
+	public void writeTo(DataOutput out)
+	throws IOException {
+
+		out.writeByte(BATCH);
+		out.writeInt(operations.size());
+		for (Operation o: operations)
+			o.writeTo(out);
+	}
+
+	public static OperationBatch read(DataInput in)
+	throws IOException {
+
+		OperationBatch b = new OperationBatch();
+		b.readFrom(in);
+
+		return b;
+	}
+}
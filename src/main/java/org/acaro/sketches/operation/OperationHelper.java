@@ -16,14 +16,13 @@
 package org.acaro.sketches.operation;
 
 import java.io.DataInput;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
 
-import org.acaro.sketches.io.SmartReader;
+import org.acaro.sketches.io.FrameHelper;
+import org.acaro.sketches.io.MappedSmartReader;
 
 
 public class OperationHelper {
@@ -52,4 +51,39 @@ public class OperationHelper {
 		
 		return o;
 	}
+	
+	/**
+	 * Reads an Operation framed by FrameHelper, verifying its checksum.
+	 * 
+	 * @param available the bytes that can belong to the record
+	 */
+	public static Operation readFramedOperation(DataInput in, long available) 
+	throws IOException {
+		
+		return readOperation(ByteBuffer.wrap(FrameHelper.read(in, available)));
+	}
+	
+	/**
+	 * Decodes an Operation from the payload of a frame.
+	 */
+	public static Operation readOperation(ByteBuffer payload) 
+	throws IOException {
+		
+		return readOperation(new MappedSmartReader(payload));
+	}
+	
+	/**
+	 * Decodes the payload of a log record, either a single Operation or an OperationBatch.
+	 */
+	public static List<Operation> readLogRecord(ByteBuffer payload) 
+	throws IOException {
+		
+		if (payload.get(payload.position()) != OperationBatch.BATCH)
+			return Collections.singletonList(readOperation(payload));
+		
+		MappedSmartReader in = new MappedSmartReader(payload);
+		in.readByte();
+		
+		return OperationBatch.read(in).getOperations();
+	}
 }
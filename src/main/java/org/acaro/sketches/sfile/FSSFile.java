@@ -18,16 +18,28 @@ package org.acaro.sketches.sfile;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.acaro.sketches.operation.Delete;
 import org.acaro.sketches.operation.Operation;
 import org.acaro.sketches.operation.OperationHelper;
 import org.acaro.sketches.operation.Update;
 import org.acaro.sketches.playground.T5Miterator;
+import org.acaro.sketches.io.CorruptedRecordException;
+import org.acaro.sketches.io.FrameHelper;
+import org.acaro.sketches.io.OperationIterator;
 import org.acaro.sketches.io.OperationReader;
 import org.acaro.sketches.io.SmartReader;
+import org.acaro.sketches.sfile.cache.BlockCache;
 import org.acaro.sketches.sfile.index.Index;
 import org.acaro.sketches.sfile.index.IndexFactory;
 import org.acaro.sketches.utils.BloomFilter;
@@ -37,9 +49,29 @@ import org.acaro.sketches.utils.Sizes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.primitives.UnsignedBytes;
+
 /**
  * It's an immutable sorted list. This is where immutable Operations go. 
  * Data in these files can't be overwritten. Think of it as SequenceFile. 
+ * Operations are framed with their length and checksum by FrameHelper, a corrupted
+ * one is reported with a CorruptedRecordException.
+ * 
+ * Lookups don't share any cursor: the index is read at absolute positions and the 
+ * data with positional reads of sketches.sfile.blocksize bytes (default: 4KB) into
+ * a per-thread buffer, so any number of threads can get() concurrently without locking.
+ * With sketches.sfile.mmap (default: false) the data region is mapped as well (see 
+ * MappedDataRegion) and Operations are decoded straight from the mapping. Otherwise
+ * blocks are read through the process-wide BlockCache, when it's enabled.
+ * 
+ * Scans read the data region sequentially in chunks of sketches.sfile.scan.buffersize
+ * KB (default: 64KB), bypassing the BlockCache. They start from the closest record
+ * found in the SparseIndex, which samples one key every sketches.sfile.sparseindex.interval
+ * records (default: 128). It's written by the FSSFileIndexer after the bloom filter 
+ * and loaded with the file.
+ * 
+ * SFiles are also placed in a level by the CompactionStrategy (0 if it doesn't use
+ * levels). A lower level holds younger versions of the keys, so it comes first.
  * 
  * @author Claudio Martella
  * 
@@ -48,17 +80,32 @@ import org.slf4j.LoggerFactory;
 public class FSSFile 
 implements SFile, Closeable {
 
-	//									  dirty byte      - timestamp      - #items         - load factor     - index offset   - bloomfilter off
-	public static final int HEADER_SIZE = Sizes.SIZEOF_BYTE+Sizes.SIZEOF_LONG+Sizes.SIZEOF_LONG+Sizes.SIZEOF_FLOAT+Sizes.SIZEOF_LONG+Sizes.SIZEOF_LONG;
+	//									  dirty byte      - timestamp      - #items         - load factor     - index offset   - bloomfilter off - sparse index off
+	public static final int HEADER_SIZE = Sizes.SIZEOF_BYTE+Sizes.SIZEOF_LONG+Sizes.SIZEOF_LONG+Sizes.SIZEOF_FLOAT+Sizes.SIZEOF_LONG+Sizes.SIZEOF_LONG+Sizes.SIZEOF_LONG;
 	public static final byte CLEAN = 0;
 	public static final byte DIRTY = 1;
+	private static final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>();
+	private static final AtomicLong ids = new AtomicLong(0);
+	private static final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+	// the most a batched get() reads at once
+	private static final int MAX_RUN_SIZE = 256 * 1024;
+	// identifies the file in the BlockCache
+	private final long id = ids.incrementAndGet();
+	private final String filename;
+	private BlockCache cache;
 	private Index index;
 	private BloomFilter bloom;
-	private SmartReader reader;
+	private FileChannel channel;
+	private MappedDataRegion data;
+	private SparseIndex sparseIndex;
+	private volatile int level = 0;
+	private int blockSize;
+	private int scanBufferSize;
 	private byte dirtyByte;
 	private long timestamp;
 	private long indexOffset;
 	private long bloomOffset;
+	private long sparseIndexOffset;
 	private long numberOfItems;
 	private long directorySize;
 	private float loadFactor;
@@ -66,12 +113,21 @@ implements SFile, Closeable {
 	public FSSFile(String filename, int blockSize) 
 	throws IOException {
 	
-		this.reader = new SmartReader(new RandomAccessFile(filename, "r").getChannel(), blockSize);
-		readHeader();
+		this.filename      = filename;
+		SmartReader reader = new SmartReader(new RandomAccessFile(filename, "r").getChannel(), blockSize);
+		readHeader(reader);
+		this.channel       = reader.getChannel();
+		this.blockSize     = blockSize;
+		this.scanBufferSize = Configuration.getConf().getInt("sketches.sfile.scan.buffersize", 64) * 1024;
 		this.directorySize = (long) Math.floor((double) loadFactor * numberOfItems);
-		this.index = IndexFactory.createIndex(reader.getChannel(), MapMode.READ_ONLY, indexOffset, bloomOffset-indexOffset);
+		this.index = IndexFactory.createIndex(channel, MapMode.READ_ONLY, indexOffset, bloomOffset-indexOffset);
 		this.bloom = BloomFilter.deserialize(reader.seek(bloomOffset));
+		this.sparseIndex = SparseIndex.deserialize(reader.seek(sparseIndexOffset));
 		this.index.load();
+		if (Configuration.getConf().getBoolean("sketches.sfile.mmap", false) && indexOffset > HEADER_SIZE)
+			this.data = new MappedDataRegion(channel, HEADER_SIZE, indexOffset);
+		else if (BlockCache.getCache().isEnabled())
+			this.cache = BlockCache.getCache();
 	}
 	
 	public FSSFile(String filename) 
@@ -91,18 +147,101 @@ implements SFile, Closeable {
 		long offset = getBucket(key);
 		if (offset == 0)
 			o = null;
-		else if (offset < indexOffset) // direct link to data
+		else if (offset < indexOffset) { // direct link to data, maybe of another key in the bucket
 			o = getItem(offset);
-		else // search in the bucket
+			if (!Arrays.equals(o.getKey(), key))
+				o = null;
+		} else // search in the bucket
 			o = searchItem(offset - indexOffset, key);
 		
 		return o;
 	}
 	
+	/**
+	 * Looks up the keys that don't have a result yet. Keys are checked against the
+	 * bloom filter and the index first, then the candidate records are read in file
+	 * order, and records that lie close to each other are read together.
+	 */
+	public void get(byte[][] keys, Operation[] results) 
+	throws IOException {
+	
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (int i = 0; i < keys.length; i++) {
+			if (results[i] != null || !bloom.isPresent(keys[i]))
+				continue;
+			
+			long offset = getBucket(keys[i]);
+			if (offset == 0)
+				continue;
+			else if (offset < indexOffset)
+				candidates.add(new Candidate(offset, i));
+			else {
+				long next = offset - indexOffset;
+				do {
+					candidates.add(new Candidate(index.getOffset(next + Sizes.SIZEOF_LONG), i));
+					next = index.getOffset(next);
+				} while (next != 0);
+			}
+		}
+		
+		Collections.sort(candidates);
+		
+		int i = 0;
+		while (i < candidates.size()) {
+			
+			// a run of candidates, each one within a block from the previous
+			long start = candidates.get(i).offset;
+			int j = i + 1;
+			while (j < candidates.size() 
+					&& candidates.get(j).offset - candidates.get(j - 1).offset <= blockSize
+					&& candidates.get(j).offset + blockSize - start <= MAX_RUN_SIZE)
+				j++;
+			
+			ByteBuffer run = null;
+			if (data == null && cache == null) {
+				run = ByteBuffer.allocate((int) (Math.min(indexOffset, candidates.get(j - 1).offset + blockSize) - start));
+				read(run, start);
+			}
+			
+			for (; i < j; i++) {
+				Candidate c = candidates.get(i);
+				if (results[c.key] != null)
+					continue;
+				
+				Operation o = null;
+				if (run != null && c.offset - start < run.limit()) {
+					ByteBuffer record = run.duplicate();
+					record.position((int) (c.offset - start));
+					if (containsRecord(record))
+						o = OperationHelper.readOperation(FrameHelper.read(record));
+				}
+				if (o == null)
+					o = getItem(c.offset);
+				
+				if (Arrays.equals(o.getKey(), keys[c.key]))
+					results[c.key] = o;
+			}
+		}
+	}
+	
+	public OperationIterator scan(byte[] startKey, byte[] endKey) 
+	throws IOException {
+	
+		long from = -1;
+		if (startKey != null)
+			from = getSparseIndex().floor(startKey);
+		
+		return new RangeIterator(from != -1 ? from : HEADER_SIZE, startKey, endKey);
+	}
+	
+	public SparseIndex getSparseIndex() {
+		return this.sparseIndex;
+	}
+	
 	public void close() 
 	throws IOException {
 	
-		reader.close();
+		channel.close();
 	}
 	
 	public byte getDirtyByte() {
@@ -130,11 +269,24 @@ implements SFile, Closeable {
 	}
 	
 	public String getName() {
-		// TODO Auto-generated method stub
-		return null;
+		return this.filename;
 	}
 	
+	public int getLevel() {
+		return this.level;
+	}
+	
+	public void setLevel(int level) {
+		this.level = level;
+	}
+	
+	/*
+	 * Younger is bigger. Between SFiles the level comes first, a lower level is younger.
+	 */
 	public int compareTo(OperationReader other) {
+		if (other instanceof FSSFile && level != ((FSSFile) other).level)
+			return level < ((FSSFile) other).level ? 1 : -1;
+		
 		long otherTs = other.getTimestamp();
 		
 		if (this.timestamp > otherTs)
@@ -164,9 +316,107 @@ implements SFile, Closeable {
 	private Operation getItem(long offset) 
 	throws IOException {
 	
-		reader.seek(offset);
+		ByteBuffer record;
+		if (data != null && (record = data.getRecord(offset)) != null) // mapped, unless it crosses two pages
+			return OperationHelper.readOperation(FrameHelper.read(record));
+		else if (cache != null)
+			return getCachedItem(offset);
+		else
+			return readItem(offset);
+	}
+	
+	/*
+	 * Blocks are aligned to the beginning of the data region. A record that goes on 
+	 * in the next block is put together from both, records bigger than a block are
+	 * read from the file.
+	 */
+	private Operation getCachedItem(long offset) 
+	throws IOException {
+	
+		long first   = offset - (offset - HEADER_SIZE) % blockSize;
+		byte[] block = getBlock(first);
+		int position = (int) (offset - first);
+		
+		ByteBuffer record = ByteBuffer.wrap(block, position, block.length - position);
+		if (!containsRecord(record) && first + block.length < indexOffset) {
+			
+			byte[] second = getBlock(first + block.length);
+			record = ByteBuffer.allocate(block.length - position + second.length);
+			record.put(block, position, block.length - position).put(second).flip();
+			
+			if (!containsRecord(record))
+				return readItem(offset);
+		}
+		
+		return OperationHelper.readOperation(FrameHelper.read(record));
+	}
+	
+	private boolean containsRecord(ByteBuffer buffer) {
+		return buffer.remaining() >= FrameHelper.HEADER_SIZE 
+			&& FrameHelper.HEADER_SIZE + (long) buffer.getInt(buffer.position()) <= buffer.remaining();
+	}
+	
+	private byte[] getBlock(long offset) 
+	throws IOException {
+	
+		byte[] block = cache.get(id, offset);
+		if (block == null) {
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(blockSize, indexOffset - offset));
+			read(buffer, offset);
+			
+			block = buffer.array();
+			if (buffer.remaining() < block.length)
+				block = Arrays.copyOf(block, buffer.remaining());
+			cache.put(id, offset, block);
+		}
 		
-		return OperationHelper.readOperation(reader);
+		return block;
+	}
+	
+	/*
+	 * One positional read is usually enough, records bigger than a block take a 
+	 * second one.
+	 */
+	private Operation readItem(long offset) 
+	throws IOException {
+	
+		long available    = indexOffset - offset;
+		ByteBuffer buffer = getScratch();
+		buffer.limit((int) Math.min(blockSize, available));
+		read(buffer, offset);
+		
+		if (buffer.remaining() >= FrameHelper.HEADER_SIZE) {
+			long length = FrameHelper.HEADER_SIZE + (long) buffer.getInt(0);
+			
+			if (length > buffer.remaining() && length <= available) {
+				buffer = ByteBuffer.allocate((int) length);
+				read(buffer, offset);
+			}
+		}
+		
+		return OperationHelper.readOperation(FrameHelper.read(buffer));
+	}
+	
+	/*
+	 * Fills the buffer from position, or up to the end of the file, and flips it.
+	 */
+	private void read(ByteBuffer buffer, long position) 
+	throws IOException {
+	
+		while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0);
+		buffer.flip();
+	}
+	
+	private ByteBuffer getScratch() {
+		ByteBuffer buffer = scratch.get();
+		
+		if (buffer == null || buffer.capacity() < blockSize) {
+			buffer = ByteBuffer.allocate(blockSize);
+			scratch.set(buffer);
+		}
+		buffer.clear();
+		
+		return buffer;
 	}
 	
 	private Operation searchItem(long offset, byte[] key) 
@@ -177,10 +427,8 @@ implements SFile, Closeable {
 		
 		do {
 			
-			index.position(next);
-			
-			next = index.getOffset();
-			data = index.getOffset();
+			data = index.getOffset(next + Sizes.SIZEOF_LONG);
+			next = index.getOffset(next);
 			
 			Operation o = getItem(data);
 			
@@ -192,7 +440,7 @@ implements SFile, Closeable {
 		return null;
 	}
 	
-	private void readHeader() 
+	private void readHeader(SmartReader reader) 
 	throws IOException {
 	
 		dirtyByte     = reader.readByte(); // should handle DIRTY file
@@ -201,6 +449,111 @@ implements SFile, Closeable {
 		loadFactor    = reader.readFloat();
 		indexOffset   = reader.readLong();	
 		bloomOffset   = reader.readLong();
+		sparseIndexOffset = reader.readLong();
+	}
+	
+	/*
+	 * Reads the records in order from an offset, skipping those before startKey 
+	 * and stopping at endKey.
+	 */
+	private class RangeIterator 
+	implements OperationIterator {
+		
+		private final byte[] endKey;
+		private ByteBuffer buffer = ByteBuffer.allocate(0);
+		// offset of the buffer in the file
+		private long bufferOffset = 0;
+		// offset of the record after the next one
+		private long position;
+		private Operation next;
+		
+		public RangeIterator(long from, byte[] startKey, byte[] endKey) 
+		throws IOException {
+		
+			this.endKey   = endKey;
+			this.position = from;
+			
+			fetch();
+			while (next != null && startKey != null && comparator.compare(next.getKey(), startKey) < 0)
+				fetch();
+		}
+		
+		public boolean hasNext() {
+			return next != null;
+		}
+		
+		public Operation next() 
+		throws IOException {
+		
+			if (!hasNext()) throw new NoSuchElementException();
+			
+			Operation o = next;
+			fetch();
+			
+			return o;
+		}
+		
+		public void close() {
+			next = null;
+		}
+		
+		private void fetch() 
+		throws IOException {
+		
+			if (position >= indexOffset) {
+				next = null;
+				return;
+			}
+			
+			ByteBuffer header = window(position, FrameHelper.HEADER_SIZE);
+			long length = header.remaining() < FrameHelper.HEADER_SIZE ? -1 : FrameHelper.HEADER_SIZE + (long) header.getInt();
+			if (length <= FrameHelper.HEADER_SIZE || length > indexOffset - position)
+				throw new CorruptedRecordException("illegal record length at " + position + " in the data region");
+			
+			Operation o = OperationHelper.readOperation(FrameHelper.read(window(position, (int) length)));
+			position += length;
+			
+			next = (endKey == null || comparator.compare(o.getKey(), endKey) < 0) ? o : null;
+		}
+		
+		/*
+		 * The buffer positioned at offset, with length bytes after it unless the data 
+		 * region ends before. 
+		 */
+		private ByteBuffer window(long offset, int length) 
+		throws IOException {
+		
+			if (offset < bufferOffset || offset + length > bufferOffset + buffer.limit()) {
+				if (buffer.capacity() < length)
+					buffer = ByteBuffer.allocate(Math.max(length, scanBufferSize));
+				
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), indexOffset - offset));
+				read(buffer, offset);
+				bufferOffset = offset;
+			}
+			
+			ByteBuffer window = buffer.duplicate();
+			window.position((int) (offset - bufferOffset));
+			
+			return window;
+		}
+	}
+	
+	private static class Candidate 
+	implements Comparable<Candidate> {
+		
+		private final long offset;
+		private final int key;
+		
+		public Candidate(long offset, int key) {
+			this.offset = offset;
+			this.key    = key;
+		}
+		
+		public int compareTo(Candidate other) {
+			return offset < other.offset ? -1 : (offset > other.offset ? 1 : 0);
+		}
 	}
 	
 	public static void main(String[] args) 
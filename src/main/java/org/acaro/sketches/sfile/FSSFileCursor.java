@@ -18,11 +18,10 @@ package org.acaro.sketches.sfile;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.Comparator;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
 
+import org.acaro.sketches.io.OperationIterator;
 import org.acaro.sketches.operation.Operation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,11 +29,20 @@ import org.slf4j.LoggerFactory;
 import com.google.common.primitives.UnsignedBytes;
 
 /**
- * Iterable set of SFileIterator. Returns element with smallest key.
+ * Iterable set of OperationIterators (i.e. FSSFileIterator). Returns element with smallest key.
  * It expects the iterators List passed to the constructor to be sorted by time.
  * iterators[0].getTimestamp() > iterators[1].getTimestamp() > ... > iterators[n].getTimestamp()
  * When two elements with the same key are found, the youngest is returned.
- * The result is a live "merging" of the Murals. Used to implement Compaction.
+ * The result is a live "merging" of the Murals. Used to implement Compaction and scans.
+ * Empty iterators are just skipped.
+ * 
+ * The cursors are kept in a binary min-heap ordered by their current key, and by 
+ * their position in the List for the same key, so the youngest version is always on
+ * top. Each returned element costs O(log n) comparisons for n iterators, plus the 
+ * same for each older version that is skipped, and no allocation of the cursor's own.
+ * The current key isn't copied anywhere: the iterators hand out a new Operation for 
+ * each record, so the key of the minimum stays valid while the older versions are 
+ * skipped and is compared in place.
  * 
  * @author Claudio Martella
  *
@@ -45,20 +53,29 @@ implements Closeable {
 
 	private static final Logger logger = LoggerFactory.getLogger(FSSFileCursor.class);
 	private final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
-	private final List<FSSFileIterator> iterators;
-	private final List<SFileCursor> cursors;
+	private final List<? extends OperationIterator> iterators;
+	private final SFileCursor[] heap;
+	private int size = 0;
 
-	public FSSFileCursor(List<FSSFileIterator> iterators) 
+	public FSSFileCursor(List<? extends OperationIterator> iterators) 
 	throws IOException {
 	
 		this.iterators = iterators;
-		this.cursors   = new LinkedList<SFileCursor>();
-		for (FSSFileIterator iterator: iterators)
-			this.cursors.add(new SFileCursor(iterator));
+		this.heap      = new SFileCursor[iterators.size()];
+		
+		int age = 0;
+		for (OperationIterator iterator: iterators) {
+			if (iterator.hasNext()) 
+				heap[size++] = new SFileCursor(iterator, age);
+			age++;
+		}
+		
+		for (int i = size / 2 - 1; i >= 0; i--)
+			siftDown(i);
 	}
 	
 	public boolean hasNext() {
-		return cursors.size() > 0;
+		return size > 0;
 	}
 
 	/**
@@ -69,73 +86,78 @@ implements Closeable {
 	
 		if (!hasNext()) throw new NoSuchElementException();
 		
-		return getMinimum(); 
+		Operation minimum = heap[0].getValue();
+		byte[] key = minimum.getKey();
+		advance();
+		
+		// skip the older versions, they're next on top
+		while (size > 0 && comparator.compare(heap[0].getValue().getKey(), key) == 0) {
+			assert heap[0].getValue().getTimestamp() <= minimum.getTimestamp() : "Older FSSFileIterator with younger data!";
+			advance();
+		}
+		
+		return minimum; 
 	}
 
 	public void close() 
 	throws IOException {
 	
-		for (FSSFileIterator iterator: iterators)
+		for (OperationIterator iterator: iterators)
 			iterator.close();
 	}
 	
-	// XXX: for performance this chould be an ArrayList
-	private LinkedList<SFileCursor> minima = new LinkedList<SFileCursor>();
-	
-	private Operation getMinimum() 
+	/*
+	 * Moves the cursor on top to its next element, or drops it if it's done.
+	 */
+	private void advance() 
 	throws IOException {
-	
-		Iterator<SFileCursor> iter = cursors.iterator();
-		SFileCursor cursor = iter.next();
-		Operation minimum  = cursor.getValue();
-		minima.add(cursor);
 		
-		while (iter.hasNext()) {
-			cursor = iter.next();
-			Operation value = cursor.getValue();
-			int comparison = comparator.compare(minimum.getKey(), value.getKey()); 
-			if (comparison == 0) { 
-				// next one would be a bug: iterators/cursors are sorted by time (youngest first), this shouldn't happen
-				assert value.getTimestamp() > minimum.getTimestamp() : "Older FSSFileIterator with younger data!";
-				minima.add(cursor);
-			} else if (comparison > 0) {
-				minimum = value;
-				minima.clear();
-				minima.add(cursor);
-			}
+		if (heap[0].hasNext()) {
+			heap[0].advance();
+		} else {
+			heap[0] = heap[--size];
+			heap[size] = null;
 		}
-		advance(minima);
-		minima.clear();
 		
-		return minimum;
+		if (size > 0)
+			siftDown(0);
 	}
 	
-	private void advance(List<SFileCursor> minima) 
-	throws IOException {
+	private void siftDown(int i) {
 		
-		for (SFileCursor cursor: minima) {
-			if (cursor.hasNext()) {
-				cursor.advance();
-			} else {
-				cursors.remove(cursor);
-			}
+		SFileCursor cursor = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && compare(heap[child + 1], heap[child]) < 0)
+				child++;
+			if (compare(cursor, heap[child]) <= 0)
+				break;
+			
+			heap[i] = heap[child];
+			i = child;
 		}
+		heap[i] = cursor;
 	}
 	
-	/*
-	 * XXX: this probably skips the last element 
-	 */
-	private class SFileCursor {
+	private int compare(SFileCursor left, SFileCursor right) {
+		int comparison = comparator.compare(left.getValue().getKey(), right.getValue().getKey());
+		
+		return comparison != 0 ? comparison : left.age - right.age;
+	}
+	
+	private static class SFileCursor {
 		
-		private final FSSFileIterator iterator;
+		private final OperationIterator iterator;
+		// position of the iterator in the List, 0 is the youngest
+		private final int age;
 		private Operation value;
 		
-		public SFileCursor(FSSFileIterator iterator) throws IOException {
+		public SFileCursor(OperationIterator iterator, int age) throws IOException {
 			this.iterator = iterator;
-			if (hasNext())
-				advance();
-			else
-				throw new IOException("Empty SFile");
+			this.age      = age;
+			advance();
 		}
 		
 		public Operation getValue() {
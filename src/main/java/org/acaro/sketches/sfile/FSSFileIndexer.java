@@ -3,11 +3,15 @@ package org.acaro.sketches.sfile;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.acaro.sketches.io.RateLimiter;
 import org.acaro.sketches.io.SmartWriter;
 import org.acaro.sketches.sfile.index.Index;
 import org.acaro.sketches.sfile.index.IndexFactory;
 import org.acaro.sketches.utils.BloomFilter;
+import org.acaro.sketches.utils.Configuration;
 import org.acaro.sketches.utils.MurmurHash3;
 import org.acaro.sketches.utils.Sizes;
 import org.slf4j.Logger;
@@ -24,6 +28,11 @@ public class FSSFileIndexer {
 	private long numberOfItems;
 	private long indexOffset;
 	private long bloomOffset;
+	private long sparseIndexOffset;
+	private int sparseInterval;
+	private List<byte[]> sparseKeys  = new ArrayList<byte[]>();
+	private List<Long> sparseOffsets = new ArrayList<Long>();
+	private byte[] lastKey;
 	private long directorySize;
 	private float loadFactor;
 
@@ -34,33 +43,46 @@ public class FSSFileIndexer {
 		this.numberOfItems = muralIterator.getNumberOfItems();
 		this.loadFactor    = muralIterator.getLoadFactor();
 		this.file          = new RandomAccessFile(fssfileFilename, "rw");
-		this.writer        = new SmartWriter(file.getChannel());
+		this.writer        = new SmartWriter(file.getChannel()).setRateLimiter(RateLimiter.getLimiter());
 		this.bloom         = BloomFilter.getFilter(numberOfItems, 0.01);
 		this.indexOffset   = file.length();
 		this.directorySize = (long) Math.floor((double) loadFactor * numberOfItems);
+		this.sparseInterval = Math.max(Configuration.getConf().getInt("sketches.sfile.sparseindex.interval", 128), 1);
 		init();
 	}
 
 	public void index() 
 	throws IOException {
 		
-		while (muralIterator.hasNext()) {
+		for (long n = 0; muralIterator.hasNext(); n++) {
 			byte[] key  = muralIterator.next().getKey();
 			long offset = muralIterator.getLastOffset();
 			
 			writeToBucket(key, offset);
 			bloom.add(key);
+			
+			// the records are sorted, one every sparseInterval goes to the SparseIndex
+			if (n % sparseInterval == 0) {
+				sparseKeys.add(key);
+				sparseOffsets.add(offset);
+			}
+			lastKey = key;
 		}
 		
 		bloomOffset = writer.getFilePointer();
 		BloomFilter.serialize(bloom, writer);
 		
+		sparseIndexOffset = writer.getFilePointer();
+		SparseIndex.serialize(new SparseIndex(sparseKeys, sparseOffsets, lastKey), writer);
+		
 		close();
 	}
 	
 	public void close() 
 	throws IOException {
 	
+		// the buckets are written back through the mapping, not the writer
+		RateLimiter.getLimiter().acquire(directorySize << 3);
 		buckets.force();
 		muralIterator.close();
 		writer.flush();
@@ -68,6 +90,7 @@ public class FSSFileIndexer {
 		file.writeByte(FSSFile.CLEAN);
 		file.skipBytes(Sizes.SIZEOF_LONG+Sizes.SIZEOF_LONG+Sizes.SIZEOF_FLOAT+Sizes.SIZEOF_LONG);
 		file.writeLong(bloomOffset);
+		file.writeLong(sparseIndexOffset);
 		file.getFD().sync();
 		file.close();
 	}
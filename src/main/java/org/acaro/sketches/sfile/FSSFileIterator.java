@@ -16,13 +16,15 @@
 package org.acaro.sketches.sfile;
 
 import java.io.BufferedInputStream;
-import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.NoSuchElementException;
 
+import org.acaro.sketches.io.FrameHelper;
+import org.acaro.sketches.io.OperationIterator;
 import org.acaro.sketches.io.SmartReader;
 import org.acaro.sketches.operation.Delete;
 import org.acaro.sketches.operation.Operation;
@@ -40,7 +42,7 @@ import org.slf4j.LoggerFactory;
  */
 
 public class FSSFileIterator 
-implements Closeable, Comparable<FSSFileIterator> {
+implements OperationIterator, Comparable<FSSFileIterator> {
 
 	private static final Logger logger = LoggerFactory.getLogger(FSSFileIterator.class);
 	private SmartReader reader;
@@ -54,6 +56,9 @@ implements Closeable, Comparable<FSSFileIterator> {
 	private long position = FSSFile.HEADER_SIZE;
 	private int lastElementSize = 0;
 	private long bloomOffset;
+	private long sparseIndexOffset;
+	// end of the data region. Not indexed yet files have just data.
+	private long dataEnd;
 		
 	public FSSFileIterator(String filename) 
 	throws IOException {
@@ -72,8 +77,9 @@ implements Closeable, Comparable<FSSFileIterator> {
 	
 		if (!hasNext()) throw new NoSuchElementException();
 		
-		Operation o = OperationHelper.readOperation(reader);
-		updateOffset(o.getSize());
+		byte[] payload = FrameHelper.read(reader, dataEnd - position);
+		Operation o    = OperationHelper.readOperation(ByteBuffer.wrap(payload));
+		updateOffset(FrameHelper.HEADER_SIZE + payload.length);
 		if (++readItems == numberOfItems)
 			close();
 		
@@ -97,6 +103,10 @@ implements Closeable, Comparable<FSSFileIterator> {
 		return this.bloomOffset;
 	}
 	
+	public long getSparseIndexOffset() {
+		return this.sparseIndexOffset;
+	}
+	
 	public long getTimestamp() {
 		return this.timestamp;
 	}
@@ -133,6 +143,8 @@ implements Closeable, Comparable<FSSFileIterator> {
 		this.loadFactor    = reader.readFloat();
 		this.indexOffset   = reader.readLong();
 		this.bloomOffset   = reader.readLong();
+		this.sparseIndexOffset = reader.readLong();
+		this.dataEnd       = indexOffset == 0 ? reader.length() : indexOffset;
 	}
 	
 	private void updateOffset(int size) {
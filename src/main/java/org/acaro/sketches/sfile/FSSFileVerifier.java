@@ -0,0 +1,128 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.sfile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.acaro.sketches.io.CorruptedRecordException;
+import org.acaro.sketches.io.FrameHelper;
+import org.acaro.sketches.io.SmartReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans the data region of an FSSFile checking the checksum of every record, without
+ * decoding them. It reads sequentially with a big buffer, so it runs at disk speed.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public class FSSFileVerifier {
+
+	private static final Logger logger = LoggerFactory.getLogger(FSSFileVerifier.class);
+	private static final int BUFFERSIZE = 1024*1024;
+	private final String filename;
+	private long verifiedItems = 0;
+	private long corruptedOffset = -1;
+	private String error;
+
+	public FSSFileVerifier(String filename) {
+		this.filename = filename;
+	}
+
+	/**
+	 * @return true if the file is clean and all its records are intact
+	 */
+	public boolean verify()
+	throws IOException {
+
+		SmartReader reader = new SmartReader(new RandomAccessFile(filename, "r").getChannel(), BUFFERSIZE);
+
+		try {
+
+			byte dirtyByte     = reader.readByte();
+			reader.readLong(); // timestamp
+			long numberOfItems = reader.readLong();
+			reader.readFloat(); // load factor
+			long indexOffset   = reader.readLong();
+			reader.readLong(); // bloomfilter offset
+
+			if (dirtyByte != FSSFile.CLEAN)
+				return fail(0, "dirty file");
+
+			long position = FSSFile.HEADER_SIZE;
+			while (position < indexOffset) {
+				try {
+					byte[] payload = FrameHelper.read(reader, indexOffset - position);
+					position += FrameHelper.HEADER_SIZE + payload.length;
+					verifiedItems++;
+				} catch (CorruptedRecordException e) {
+					return fail(position, e.getMessage());
+				}
+			}
+
+			if (verifiedItems != numberOfItems)
+				return fail(position, "found " + verifiedItems + " items instead of " + numberOfItems);
+
+			return true;
+
+		} finally {
+			reader.close();
+		}
+	}
+
+	public long getVerifiedItems() {
+		return this.verifiedItems;
+	}
+
+	/**
+	 * @return the offset of the first corrupted record, or -1
+	 */
+	public long getCorruptedOffset() {
+		return this.corruptedOffset;
+	}
+
+	public String getError() {
+		return this.error;
+	}
+
+	private boolean fail(long offset, String error) {
+		this.corruptedOffset = offset;
+		this.error           = error;
+		logger.warn("SFile " + filename + " corrupted at " + offset + ": " + error);
+
+		return false;
+	}
+
+	public static void main(String[] args)
+	throws IOException {
+
+		if (args.length != 1) {
+			System.out.println("usage: FSSFileVerifier <filename>");
+			System.exit(-1);
+		}
+
+		FSSFileVerifier verifier = new FSSFileVerifier(args[0]);
+		if (verifier.verify()) {
+			System.out.println("ok: " + verifier.getVerifiedItems() + " items");
+		} else {
+			System.out.println("corrupted at " + verifier.getCorruptedOffset() + ": " + verifier.getError());
+			System.exit(1);
+		}
+	}
+}
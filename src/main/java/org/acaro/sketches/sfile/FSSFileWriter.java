@@ -19,6 +19,8 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
+import org.acaro.sketches.io.FrameHelper;
+import org.acaro.sketches.io.RateLimiter;
 import org.acaro.sketches.io.SmartWriter;
 import org.acaro.sketches.operation.Operation;
 import org.acaro.sketches.utils.Configuration;
@@ -32,12 +34,14 @@ implements Closeable {
 	private SmartWriter writer;
 	private long timestamp     = 0;
 	private long numberOfItems = 0;
+	private long size          = 0;
 	private float loadFactor   = 0;
 	
 	public FSSFileWriter(String filename) 
 	throws IOException {
 	
-		this.writer     = new SmartWriter(new RandomAccessFile(filename, "rw").getChannel());
+		this.writer     = new SmartWriter(new RandomAccessFile(filename, "rw").getChannel())
+			.setRateLimiter(RateLimiter.getLimiter());
 		this.loadFactor = Configuration.getConf().getFloat("sketches.sfile.loadfactor", 1.0f);
 		init();
 	}
@@ -45,7 +49,7 @@ implements Closeable {
 	public void write(Operation o) 
 	throws IOException {
 	
-		o.writeTo(writer);
+		size += FrameHelper.write(o, writer);
 		updateTimestamp(o);
 		numberOfItems++;
 	}
@@ -63,6 +67,13 @@ implements Closeable {
 		writer.close();
 	}
 
+	/**
+	 * @return the bytes of data written so far
+	 */
+	public long getSize() {
+		return this.size;
+	}
+	
 	private void init() 
 	throws IOException {
 	
@@ -72,6 +83,7 @@ implements Closeable {
 		writer.writeFloat(0);
 		writer.writeLong(0);
 		writer.writeLong(0);
+		writer.writeLong(0);
 		writer.sync();
 	}
 	
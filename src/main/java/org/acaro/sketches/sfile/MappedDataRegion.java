@@ -0,0 +1,81 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.sfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.acaro.sketches.io.FrameHelper;
+
+/**
+ * The data region of an FSSFile, mapped read-only in pages of 1GB like the BigIndex
+ * does with the index. Records are returned as views of the mapping, so reading
+ * them doesn't need any syscall once their page is in the page cache.
+ *
+ * A record that crosses the boundary of two pages can't be viewed as a whole, the
+ * caller has to read it from the channel.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public class MappedDataRegion {
+
+	private static final long PAGE_SIZE = 1L << 30;
+	private final MappedByteBuffer pages[];
+	private final long start;
+	private final long end;
+
+	public MappedDataRegion(FileChannel channel, long start, long end)
+	throws IOException {
+
+		this.start = start;
+		this.end   = end;
+
+		long length = end - start;
+		int n = (int) ((length % PAGE_SIZE == 0) ? length / PAGE_SIZE : length / PAGE_SIZE + 1);
+		pages = new MappedByteBuffer[n];
+
+		for (int i = 0; i < n; i++) {
+			long s = i * PAGE_SIZE;
+			pages[i] = channel.map(MapMode.READ_ONLY, start + s, Math.min(PAGE_SIZE, length - s));
+		}
+	}
+
+	/**
+	 * @return a view starting at the record at offset and big enough to contain it, or null
+	 * if the record crosses two pages.
+	 */
+	public ByteBuffer getRecord(long offset) {
+		assert offset >= start && offset < end: "offset: " + offset + " region: " + start + "-" + end;
+
+		ByteBuffer page = pages[(int) ((offset - start) / PAGE_SIZE)].duplicate();
+		page.position((int) ((offset - start) % PAGE_SIZE));
+
+		if (page.remaining() < FrameHelper.HEADER_SIZE)
+			return offset + page.remaining() < end ? null : page;
+
+		long length = FrameHelper.HEADER_SIZE + (long) page.getInt(page.position());
+		if (length > page.remaining() && offset + length <= end)
+			return null;
+
+		// a length that makes no sense is left to FrameHelper to report
+		return page;
+	}
+}
@@ -17,6 +17,7 @@ package org.acaro.sketches.sfile;
 
 import java.io.IOException;
 
+import org.acaro.sketches.io.OperationIterator;
 import org.acaro.sketches.io.OperationReader;
 import org.acaro.sketches.memstore.Memstore;
 import org.acaro.sketches.operation.Operation;
@@ -38,9 +39,17 @@ implements SFile {
 		return memory.get(key);
 	}
 
+	public OperationIterator scan(byte[] startKey, byte[] endKey) 
+	throws IOException {
+		return memory.scan(startKey, endKey);
+	}
+
+	/*
+	 * Closes the Memstore, its log is left where it is.
+	 */
 	public void close() 
 	throws IOException { 
-		throw new UnsupportedOperationException("Can't close a RAMSFile");
+		memory.close();
 	}
 
 	public long getTimestamp() {
@@ -0,0 +1,138 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.sfile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.acaro.sketches.io.SmartReader;
+import org.acaro.sketches.io.SmartWriter;
+
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * The key and the offset of one every N records of an FSSFile, in key order. The 
+ * hash index can't tell where a range of keys starts, the SparseIndex tells where 
+ * to start reading to find it.
+ * 
+ * It's sampled by the FSSFileIndexer while it goes through the records, and stored
+ * after the bloom filter, so the key range of a file is known without reading it.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class SparseIndex {
+
+	private static final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+	private final byte[][] keys;
+	private final long[] offsets;
+	private final byte[] lastKey;
+
+	public SparseIndex(List<byte[]> keys, List<Long> offsets, byte[] lastKey) {
+		this.keys    = keys.toArray(new byte[keys.size()][]);
+		this.lastKey = lastKey;
+		this.offsets = new long[offsets.size()];
+		for (int i = 0; i < this.offsets.length; i++)
+			this.offsets[i] = offsets.get(i);
+	}
+
+	/**
+	 * @return the offset of the last sampled record with a key <= key, or -1 if 
+	 * the key comes before all of them
+	 */
+	public long floor(byte[] key) {
+		int low  = 0;
+		int high = keys.length - 1;
+
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int cmp    = comparator.compare(keys[middle], key);
+
+			if (cmp < 0)
+				low = middle + 1;
+			else if (cmp > 0)
+				high = middle - 1;
+			else
+				return offsets[middle];
+		}
+
+		return high >= 0 ? offsets[high] : -1;
+	}
+
+	/**
+	 * @return the smallest key of the file, or null if it's empty
+	 */
+	public byte[] getFirstKey() {
+		return keys.length > 0 ? keys[0] : null;
+	}
+
+	/**
+	 * @return the biggest key of the file, or null if it's empty
+	 */
+	public byte[] getLastKey() {
+		return this.lastKey;
+	}
+
+	public int size() {
+		return keys.length;
+	}
+
+	public byte[] getKey(int i) {
+		return keys[i];
+	}
+
+	public long getOffset(int i) {
+		return offsets[i];
+	}
+
+	public static void serialize(SparseIndex index, SmartWriter writer) throws IOException {
+		writer.writeInt(index.keys.length);
+		for (int i = 0; i < index.keys.length; i++) {
+			writer.writeInt(index.keys[i].length);
+			writer.write(index.keys[i]);
+			writer.writeLong(index.offsets[i]);
+		}
+		
+		writer.writeInt(index.lastKey != null ? index.lastKey.length : -1);
+		if (index.lastKey != null)
+			writer.write(index.lastKey);
+	}
+
+	public static SparseIndex deserialize(SmartReader reader) throws IOException {
+		int size           = reader.readInt();
+		List<byte[]> keys  = new ArrayList<byte[]>(size);
+		List<Long> offsets = new ArrayList<Long>(size);
+		
+		for (int i = 0; i < size; i++) {
+			byte[] key = new byte[reader.readInt()];
+			reader.readFully(key);
+			keys.add(key);
+			offsets.add(reader.readLong());
+		}
+		
+		int length     = reader.readInt();
+		byte[] lastKey = null;
+		if (length >= 0) {
+			lastKey = new byte[length];
+			reader.readFully(lastKey);
+		}
+		
+		return new SparseIndex(keys, offsets, lastKey);
+	}
+}
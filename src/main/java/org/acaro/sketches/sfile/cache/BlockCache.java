@@ -0,0 +1,272 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.sfile.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.acaro.sketches.utils.Configuration;
+
+/**
+ * Process-wide cache of the blocks read from the SFiles, keyed by the id of the
+ * SFile and the offset of the block. It holds up to sketches.blockcache.size MB
+ * (default: 0, disabled) split in sketches.blockcache.shards shards
+ * (default: 16), each with its own lock.
+ *
+ * Eviction follows W-TinyLFU. New blocks enter a small LRU window (1% of a shard).
+ * The rest of the shard is a segmented LRU: blocks go from the window to probation,
+ * and to protected (80%) when they are hit again. A block leaving the window is
+ * admitted only if it has been asked for more often than the block it would
+ * evict, as estimated by a FrequencySketch. A scan of blocks nobody reads twice
+ * passes through the window without flushing the working set.
+ *
+ * Blocks of closed SFiles are not removed, they age out like any cold block.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public class BlockCache {
+
+	private final Shard[] shards;
+	private final long capacity;
+	private final AtomicLong hits      = new AtomicLong(0);
+	private final AtomicLong misses    = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+
+	private static class BlockCacheHolder {
+		public static final BlockCache INSTANCE = new BlockCache(
+				Configuration.getConf().getInt("sketches.blockcache.size", 0) * 1024L * 1024L,
+				Configuration.getConf().getInt("sketches.blockcache.shards", 16),
+				Configuration.getConf().getInt("sketches.sfile.blocksize", 4096));
+	}
+
+	public static BlockCache getCache() {
+		return BlockCacheHolder.INSTANCE;
+	}
+
+	public BlockCache(long capacity, int shards, int blockSize) {
+		int n = Integer.highestOneBit(Math.max(shards, 1) - 1) << 1;
+
+		this.capacity = capacity;
+		this.shards   = new Shard[Math.max(n, 1)];
+		for (int i = 0; i < this.shards.length; i++)
+			this.shards[i] = new Shard(capacity / this.shards.length, blockSize);
+	}
+
+	/**
+	 * @return the block, or null if it's not cached
+	 */
+	public byte[] get(long file, long offset) {
+		BlockKey key = new BlockKey(file, offset);
+		byte[] block = shardOf(key).get(key);
+
+		if (block != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+
+		return block;
+	}
+
+	public void put(long file, long offset, byte[] block) {
+		BlockKey key = new BlockKey(file, offset);
+		shardOf(key).put(key, block);
+	}
+
+	public boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	public long getCapacity() {
+		return this.capacity;
+	}
+
+	public long getSize() {
+		long size = 0;
+		for (Shard shard: shards)
+			size += shard.size();
+
+		return size;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public double getHitRate() {
+		long h = hits.get();
+		long m = misses.get();
+
+		return (h + m == 0) ? 0 : (double) h / (h + m);
+	}
+
+	public String toString() {
+		return "BlockCache size: " + getSize() + "/" + capacity + " hits: " + getHitCount() + " misses: "
+			+ getMissCount() + " evictions: " + getEvictionCount() + " hit rate: " + getHitRate();
+	}
+
+	private Shard shardOf(BlockKey key) {
+		return shards[(key.hashCode() >>> 16) & (shards.length - 1)];
+	}
+
+	private class Shard {
+
+		private final LinkedHashMap<BlockKey, byte[]> window     = new LinkedHashMap<BlockKey, byte[]>(16, 0.75f, true);
+		private final LinkedHashMap<BlockKey, byte[]> probation  = new LinkedHashMap<BlockKey, byte[]>(16, 0.75f, true);
+		private final LinkedHashMap<BlockKey, byte[]> protecteds = new LinkedHashMap<BlockKey, byte[]>(16, 0.75f, true);
+		private final FrequencySketch sketch;
+		private final long windowCapacity;
+		private final long mainCapacity;
+		private final long protectedCapacity;
+		private long windowSize    = 0;
+		private long probationSize = 0;
+		private long protectedSize = 0;
+
+		public Shard(long capacity, int blockSize) {
+			this.windowCapacity    = Math.min(capacity, Math.max(capacity / 100, blockSize));
+			this.mainCapacity      = capacity - windowCapacity;
+			this.protectedCapacity = (long) (mainCapacity * 0.8);
+			this.sketch            = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, capacity / Math.max(blockSize, 1)));
+		}
+
+		public synchronized byte[] get(BlockKey key) {
+			sketch.increment(key.hashCode());
+
+			byte[] block;
+			if ((block = window.get(key)) != null || (block = protecteds.get(key)) != null)
+				return block;
+
+			// hit twice, it's part of the working set
+			if ((block = probation.remove(key)) != null) {
+				probationSize -= block.length;
+				protecteds.put(key, block);
+				protectedSize += block.length;
+
+				while (protectedSize > protectedCapacity) {
+					Entry<BlockKey, byte[]> demoted = removeEldest(protecteds);
+					protectedSize -= demoted.getValue().length;
+					probation.put(demoted.getKey(), demoted.getValue());
+					probationSize += demoted.getValue().length;
+				}
+			}
+
+			return block;
+		}
+
+		public synchronized void put(BlockKey key, byte[] block) {
+			// somebody else read it in the meantime
+			if (window.containsKey(key) || probation.containsKey(key) || protecteds.containsKey(key))
+				return;
+
+			window.put(key, block);
+			windowSize += block.length;
+
+			while (windowSize > windowCapacity) {
+				Entry<BlockKey, byte[]> candidate = removeEldest(window);
+				windowSize -= candidate.getValue().length;
+				admit(candidate.getKey(), candidate.getValue());
+			}
+		}
+
+		public synchronized long size() {
+			return windowSize + probationSize + protectedSize;
+		}
+
+		/*
+		 * The candidate from the window takes the place of the victims only if it is
+		 * more frequent than each of them. Probation is evicted before protected.
+		 */
+		private void admit(BlockKey key, byte[] block) {
+			if (block.length > mainCapacity) {
+				evictions.incrementAndGet();
+				return;
+			}
+
+			int frequency = sketch.frequency(key.hashCode());
+			while (probationSize + protectedSize + block.length > mainCapacity) {
+
+				boolean fromProbation = !probation.isEmpty();
+				LinkedHashMap<BlockKey, byte[]> segment = fromProbation ? probation : protecteds;
+				Entry<BlockKey, byte[]> victim = segment.entrySet().iterator().next();
+
+				evictions.incrementAndGet();
+				if (sketch.frequency(victim.getKey().hashCode()) >= frequency)
+					return;
+
+				segment.remove(victim.getKey());
+				if (fromProbation)
+					probationSize -= victim.getValue().length;
+				else
+					protectedSize -= victim.getValue().length;
+			}
+
+			probation.put(key, block);
+			probationSize += block.length;
+		}
+
+		private Entry<BlockKey, byte[]> removeEldest(LinkedHashMap<BlockKey, byte[]> segment) {
+			Iterator<Entry<BlockKey, byte[]>> i = segment.entrySet().iterator();
+			Entry<BlockKey, byte[]> eldest = i.next();
+			i.remove();
+
+			return eldest;
+		}
+	}
+
+	private static class BlockKey {
+
+		private final long file;
+		private final long offset;
+		private final int hash;
+
+		public BlockKey(long file, long offset) {
+			long h = (file * 0x9e3779b97f4a7c15L) ^ offset;
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+
+			this.file   = file;
+			this.offset = offset;
+			this.hash   = (int) h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof BlockKey))
+				return false;
+
+			BlockKey other = (BlockKey) o;
+
+			return file == other.file && offset == other.offset;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.sfile.cache;
+
+/**
+ * Approximate access frequency of a set of items, as a count-min sketch of 4-bit
+ * counters (TinyLFU). Counters are halved every 10 increments per slot, so the
+ * history ages and items that were popular a long time ago lose their weight.
+ *
+ * Not thread-safe, each shard of the BlockCache owns one.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+class FrequencySketch {
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private final long[] table;
+	private final int mask;
+	private final int sampleSize;
+	private int additions = 0;
+
+	public FrequencySketch(int expectedItems) {
+		int size = Integer.highestOneBit(Math.max(expectedItems, 16) - 1) << 1;
+
+		this.table      = new long[size];
+		this.mask       = size - 1;
+		this.sampleSize = 10 * size;
+	}
+
+	public int frequency(int hash) {
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < SEEDS.length; i++)
+			frequency = Math.min(frequency, (int) ((table[indexOf(hash, i)] >>> offsetOf(hash, i)) & 0xfL));
+
+		return frequency;
+	}
+
+	public void increment(int hash) {
+		boolean added = false;
+		for (int i = 0; i < SEEDS.length; i++)
+			added |= increment(indexOf(hash, i), offsetOf(hash, i));
+
+		if (added && ++additions == sampleSize)
+			reset();
+	}
+
+	private boolean increment(int index, int offset) {
+		long counter = 0xfL << offset;
+		if ((table[index] & counter) == counter) // saturated
+			return false;
+
+		table[index] += 1L << offset;
+
+		return true;
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; i++)
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		additions /= 2;
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+
+		return ((int) h) & mask;
+	}
+
+	/*
+	 * Each long holds 16 counters, the i-th hash function picks one of the 4 in the i-th group.
+	 */
+	private int offsetOf(int hash, int i) {
+		return ((i << 2) + ((hash >>> (i << 3)) & 3)) << 2;
+	}
+}
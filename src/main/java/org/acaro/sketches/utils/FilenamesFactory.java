@@ -1,7 +1,12 @@
 package org.acaro.sketches.utils;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class FilenamesFactory {
 	
+	// the last basename given, they're unique even when asked within the same millisecond
+	private static final AtomicLong last = new AtomicLong(0);
+	
 	public static final String SFILE_EXTENSION    = ".sfile";
 	public static final String LOG_EXTENSION      = ".log";
 	public static final String STATELOG_EXTENSION = ".slog";
@@ -14,11 +19,21 @@ public class FilenamesFactory {
 		return getBasename() + LOG_EXTENSION;
 	}
 	
+	public static String getLogSegmentFilename(String logFilename, int segment) {
+		return logFilename + "." + segment;
+	}
+	
 	public static String getStateLogFilename() {
 		return getBasename() + STATELOG_EXTENSION;
 	}
 	
 	private static String getBasename() {
-		return String.valueOf(System.currentTimeMillis());
+		while (true) {
+			long previous = last.get();
+			long next     = Math.max(previous + 1, System.currentTimeMillis());
+			
+			if (last.compareAndSet(previous, next))
+				return String.valueOf(next);
+		}
 	}
 }
@@ -1,91 +1,201 @@
 package org.acaro.sketches.utils;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.acaro.sketches.io.OperationReader;
 import org.acaro.sketches.memstore.Memstore;
+import org.acaro.sketches.sfile.RAMSFile;
 
-public class OperationReaders 
+/**
+ * An immutable snapshot of the readers: the Memstore first, then the in-memory
+ * RAMSFiles being scribed, then the SFiles on disk, each group youngest first (the
+ * reverse of compareTo()), so the first reader that has a key has its latest version.
+ * Changes build a new snapshot that is published in place of this one.
+ *
+ * A snapshot is pinned by whoever uses it, and starts with a pin held by its
+ * publication. Once it's replaced and the last pin is gone, it can't be pinned
+ * anymore: it is reclaimed and the readers retired along with it are closed.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public class OperationReaders
 implements Iterable<OperationReader> {
 
-	private Memstore memstore;
-	private ArrayList<OperationReader> list = new ArrayList<OperationReader>();
+	private static final OperationReader[] EMPTY = new OperationReader[0];
+	private final Memstore memstore;
+	private final OperationReader[] memory;
+	private final OperationReader[] files;
+	private final AtomicInteger pins          = new AtomicInteger(1);
+	private final CountDownLatch reclaimed    = new CountDownLatch(1);
+	private final List<Closeable> retired     = new ArrayList<Closeable>();
 
-	public OperationReaders() { }
-	
 	public OperationReaders(Memstore memstore) {
-		setMemstore(memstore);
+		this(memstore, EMPTY, EMPTY);
 	}
-	
-	public Memstore setMemstore(Memstore memstore) {
-		Memstore old  = this.memstore;
+
+	private OperationReaders(Memstore memstore, OperationReader[] memory, OperationReader[] files) {
 		this.memstore = memstore;
-		
-		return old;
+		this.memory   = memory;
+		this.files    = files;
 	}
-	
+
 	public Memstore getMemstore() {
 		return this.memstore;
 	}
-	
-	public void add(OperationReader reader) {
-		insertSorted(reader);
+
+	public OperationReaders withMemstore(Memstore memstore) {
+		return new OperationReaders(memstore, memory, files);
+	}
+
+	public OperationReaders with(OperationReader... readers) {
+		OperationReader[] memory = this.memory;
+		OperationReader[] files  = this.files;
+		
+		for (OperationReader reader: readers) {
+			if (reader instanceof RAMSFile)
+				memory = insertSorted(memory, reader);
+			else
+				files  = insertSorted(files, reader);
+		}
+		
+		return new OperationReaders(memstore, memory, files);
+	}
+
+	public OperationReaders without(OperationReader... readers) {
+		return new OperationReaders(memstore, remove(memory, readers), remove(files, readers));
+	}
+
+	/*
+	 * The Memstore and the RAMSFiles, always up to date.
+	 */
+	public OperationReader[] getMemoryReaders() {
+		OperationReader[] array = new OperationReader[memory.length + 1];
+		array[0] = memstore;
+		System.arraycopy(memory, 0, array, 1, memory.length);
+
+		return array;
 	}
-	
-	public void remove(OperationReader reader) {
-		list.remove(reader);
+
+	public OperationReader[] getFileReaders() {
+		return files.clone();
 	}
-	
+
 	public OperationReader[] toArray() {
-		
-		OperationReader[] array = new OperationReader[list.size() + 1];
+
+		OperationReader[] array = new OperationReader[memory.length + files.length + 1];
 
 		int i = 0;
 		for (OperationReader reader: this)
 			array[i++] = reader;
-		
+
 		return array;
 	}
-	
+
 	public Iterator<OperationReader> iterator() {
 		return new OperationReadersIterator();
 	}
 
-    private void insertSorted(OperationReader reader) {
-    	
-        list.add(reader); // add it to the tail and move it to the right place
-        Comparable<OperationReader> cmp = (Comparable<OperationReader>) reader;
-        for (int i = list.size() - 1; i > 0 && cmp.compareTo(list.get( i - 1)) < 0; i--) {
-            OperationReader tmp = list.get(i);
-            list.set(i, list.get(i - 1));
-            list.set(i - 1, tmp);
-        }
-    }
-	
+	/**
+	 * @return false if the snapshot has been reclaimed already
+	 */
+	public boolean pin() {
+
+		while (true) {
+			int current = pins.get();
+			if (current == 0)
+				return false;
+			if (pins.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * @return true if this was the last pin
+	 */
+	public boolean unpin() {
+		return pins.decrementAndGet() == 0;
+	}
+
+	public boolean isPinned() {
+		return pins.get() > 0;
+	}
+
+	/*
+	 * The readers to close when the snapshot is reclaimed.
+	 */
+	public void retire(Closeable... readers) {
+		retired.addAll(Arrays.asList(readers));
+	}
+
+	public List<Closeable> getRetired() {
+		return this.retired;
+	}
+
+	public void setReclaimed() {
+		reclaimed.countDown();
+	}
+
+	/*
+	 * Waits until nobody uses this snapshot, or any older one, anymore.
+	 */
+	public void awaitReclaimed()
+	throws InterruptedException {
+
+		reclaimed.await();
+	}
+
+	private static OperationReader[] insertSorted(OperationReader[] readers, OperationReader reader) {
+
+		OperationReader[] array = Arrays.copyOf(readers, readers.length + 1);
+
+		// add it to the tail and move it up, past the older ones
+		array[readers.length] = reader;
+		for (int i = array.length - 1; i > 0 && reader.compareTo(array[i - 1]) > 0; i--) {
+			OperationReader tmp = array[i];
+			array[i] = array[i - 1];
+			array[i - 1] = tmp;
+		}
+
+		return array;
+	}
+
+	private static OperationReader[] remove(OperationReader[] readers, OperationReader[] removed) {
+
+		List<OperationReader> list = new ArrayList<OperationReader>(Arrays.asList(readers));
+		list.removeAll(Arrays.asList(removed));
+
+		return list.toArray(EMPTY);
+	}
+
 	private class OperationReadersIterator
 	implements Iterator<OperationReader> {
 
-		private boolean first = true;
-		private Iterator<OperationReader> i = list.iterator();
-		
-		public boolean hasNext() {
+		private int i = 0;
 
-			if (first) {
-				return true;
-			} else { 
-				return i.hasNext();
-			}
+		public boolean hasNext() {
+			return i <= memory.length + files.length;
 		}
 
 		public OperationReader next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
 
-			if (first) {
-				first = false;
+			int current = i++;
+			if (current == 0)
 				return memstore;
-			} else {
-				return i.next();
-			}
+			else if (current <= memory.length)
+				return memory[current - 1];
+			else
+				return files[current - memory.length - 1];
 		}
 
 		public void remove() {
@@ -0,0 +1,234 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.utils;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.acaro.sketches.memstore.Memstore;
+import org.acaro.sketches.operation.Operation;
+
+/**
+ * Cache of the Operations found in the SFiles, keyed by key content. It sits
+ * between Sketches.get() and the SFiles in OperationReaders: the Memstore is
+ * always asked first, so a put or a delete is seen right away, and the cache only
+ * answers for what the SFiles would answer.
+ *
+ * The only time that changes is when a Memstore is scribed and its Operations
+ * become part of the SFiles: invalidate(Memstore) drops the cached versions of its
+ * keys. Compactions don't change what the SFiles answer, so they don't touch the
+ * cache. A reader can find an Operation in the SFiles before a scribe and put it 
+ * after the invalidation, so every invalidation starts a new epoch, and a put 
+ * is dropped if the epoch changed since the reader started (see getEpoch()).
+ *
+ * The cache holds up to sketches.rowcache.size MB of Operations (default: 0,
+ * disabled), in sketches.rowcache.shards (default: 16) LRU shards, each with its
+ * own lock.
+ *
+ * @author Claudio Martella
+ *
+ */
+
+public class RowCache {
+
+	// rough cost of an entry besides its Operation
+	private static final int ENTRY_OVERHEAD = 64;
+	private final Shard[] shards;
+	private final long capacity;
+	private final AtomicLong hits   = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong epoch  = new AtomicLong(0);
+
+	public RowCache(long capacity, int shards) {
+		int n = Integer.highestOneBit(Math.max(shards, 1) - 1) << 1;
+
+		this.capacity = capacity;
+		this.shards   = new Shard[Math.max(n, 1)];
+		for (int i = 0; i < this.shards.length; i++)
+			this.shards[i] = new Shard(capacity / this.shards.length);
+	}
+
+	/**
+	 * @return the cache configured by sketches.rowcache.size, or null if it's disabled
+	 */
+	public static RowCache create(Configuration conf) {
+		long capacity = conf.getInt("sketches.rowcache.size", 0) * 1024L * 1024L;
+
+		return capacity > 0 ? new RowCache(capacity, conf.getInt("sketches.rowcache.shards", 16)) : null;
+	}
+
+	public Operation get(byte[] key) {
+		RowKey k = new RowKey(key);
+		Operation o = shardOf(k).get(k);
+
+		if (o != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+
+		return o;
+	}
+
+	/**
+	 * To be read before asking the readers for what is going to be put.
+	 */
+	public long getEpoch() {
+		return epoch.get();
+	}
+
+	/**
+	 * @param epoch the epoch read before the Operation was looked up
+	 */
+	public void put(Operation o, long epoch) {
+		RowKey k = new RowKey(o.getKey());
+		shardOf(k).put(k, o, epoch);
+	}
+
+	public void invalidate(byte[] key) {
+		RowKey k = new RowKey(key);
+		shardOf(k).remove(k);
+	}
+
+	/**
+	 * Drops every key written to the Memstore, walking whichever is smaller between
+	 * the Memstore and the cache. The Memstore must not receive writes anymore.
+	 */
+	public void invalidate(Memstore memstore) {
+		// the puts that haven't got to their shard yet are dropped from now on
+		epoch.incrementAndGet();
+		
+		if (memstore.getNumberOfItems() < getNumberOfItems()) {
+			for (Operation o: memstore.getOperations())
+				invalidate(o.getKey());
+		} else {
+			for (Shard shard: shards)
+				shard.removeAll(memstore);
+		}
+	}
+
+	public long getCapacity() {
+		return this.capacity;
+	}
+
+	public int getNumberOfItems() {
+		int items = 0;
+		for (Shard shard: shards)
+			items += shard.items();
+
+		return items;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public String toString() {
+		return "RowCache items: " + getNumberOfItems() + " hits: " + getHitCount() + " misses: " + getMissCount();
+	}
+
+	private Shard shardOf(RowKey key) {
+		return shards[(key.hashCode() >>> 16) & (shards.length - 1)];
+	}
+
+	private static int weigh(Operation o) {
+		return o.getSize() + ENTRY_OVERHEAD;
+	}
+
+	private class Shard {
+
+		private final LinkedHashMap<RowKey, Operation> map = new LinkedHashMap<RowKey, Operation>(16, 0.75f, true);
+		private final long capacity;
+		private long size = 0;
+
+		public Shard(long capacity) {
+			this.capacity = capacity;
+		}
+
+		public synchronized Operation get(RowKey key) {
+			return map.get(key);
+		}
+
+		public synchronized void put(RowKey key, Operation o, long from) {
+			if (weigh(o) > capacity || from != epoch.get())
+				return;
+
+			Operation old = map.put(key, o);
+			if (old != null)
+				size -= weigh(old);
+			size += weigh(o);
+
+			Iterator<Operation> i = map.values().iterator();
+			while (size > capacity) {
+				size -= weigh(i.next());
+				i.remove();
+			}
+		}
+
+		public synchronized void remove(RowKey key) {
+			Operation old = map.remove(key);
+			if (old != null)
+				size -= weigh(old);
+		}
+
+		public synchronized void removeAll(Memstore memstore) {
+			Iterator<Entry<RowKey, Operation>> i = map.entrySet().iterator();
+			while (i.hasNext()) {
+				Entry<RowKey, Operation> entry = i.next();
+				if (memstore.get(entry.getKey().key) != null) {
+					size -= weigh(entry.getValue());
+					i.remove();
+				}
+			}
+		}
+
+		public synchronized int items() {
+			return map.size();
+		}
+	}
+
+	private static class RowKey {
+
+		private final byte[] key;
+		private final int hash;
+
+		public RowKey(byte[] key) {
+			long h = MurmurHash3.hash(key);
+
+			this.key  = key;
+			this.hash = (int) (h ^ (h >>> 32));
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof RowKey))
+				return false;
+
+			return Arrays.equals(key, ((RowKey) o).key);
+		}
+	}
+}
@@ -15,33 +15,37 @@
 
 package org.acaro.sketches.utils;
 
-import java.io.DataInput;
-import java.io.EOFException;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-import org.acaro.sketches.io.MappedSmartReader;
+import org.acaro.sketches.io.OperationIterator;
+import org.acaro.sketches.io.OperationReader;
+import org.acaro.sketches.memstore.LogfileReplayer;
 import org.acaro.sketches.memstore.Memstore;
 import org.acaro.sketches.operation.Delete;
 import org.acaro.sketches.operation.Operation;
-import org.acaro.sketches.operation.OperationComparator;
-import org.acaro.sketches.operation.OperationHelper;
 import org.acaro.sketches.sfile.FSSFile;
 import org.acaro.sketches.sfile.FSSFileIndexer;
 import org.acaro.sketches.sfile.FSSFileIterator;
 import org.acaro.sketches.sfile.FSSFileWriter;
 import org.acaro.sketches.sfile.FSSFileCursor;
 import org.acaro.sketches.sfile.SFile;
+import org.acaro.sketches.sfile.SparseIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.Uninterruptibles;
+
 /**
  * 
  * @author Claudio Martella
@@ -53,35 +57,29 @@ import org.slf4j.LoggerFactory;
 public class SketchesHelper {
 	
 	static final Logger logger = LoggerFactory.getLogger(SketchesHelper.class);
+	private static final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
 
 	public static Memstore loadLogfile(String file) 
 	throws IOException {
 	
-		Memstore memory = new Memstore();
-		FileChannel ch  = null;
-
-		ch = new RandomAccessFile(file, "rw").getChannel();
-		MappedByteBuffer buffer = ch.map(MapMode.READ_WRITE, 0, ch.size());
-		buffer.load();
-		DataInput in = new MappedSmartReader(buffer);
-
-		int loaded = 0;
-		while (true) {
-			
-			try {
-				Operation o = OperationHelper.readOperation(in);
-				memory.put(o.getKey(), o);
-				loaded++;
-			} catch (EOFException e) {
-				break;
-			} finally {
-				ch.close();
-			}
+		return new LogfileReplayer(file).replay();
+	}
+	
+	/*
+	 * Looks up in the reader the keys that don't have a result yet, in a batch when
+	 * the reader supports it.
+	 */
+	public static void get(OperationReader reader, byte[][] keys, Operation[] results) 
+	throws IOException {
+		
+		if (reader instanceof FSSFile) {
+			((FSSFile) reader).get(keys, results);
+			return;
 		}
-
-		logger.debug(loaded + " loaded: " + memory.getSize());
-
-		return memory;
+		
+		for (int i = 0; i < keys.length; i++)
+			if (results[i] == null)
+				results[i] = reader.get(keys[i]);
 	}
 	
 	public static void scribe(Memstore memory, String filename) 
@@ -90,11 +88,7 @@ public class SketchesHelper {
 		long start = System.currentTimeMillis();
 		logger.info("burning started: " + start);
 
-		Map<byte[], Operation> map  = memory.getMap();
-		ArrayList<Operation> sorted = new ArrayList<Operation>(map.size());
-		sorted.addAll(map.values());
-
-		Collections.sort(sorted, new OperationComparator());
+		Iterable<Operation> sorted = memory.getSortedOperations();
 		logger.debug("Memstore is sorted: "+ (System.currentTimeMillis()-start));
 
 		FSSFileWriter writer = new FSSFileWriter(filename);
@@ -110,27 +104,205 @@ public class SketchesHelper {
 		indexer.index();
 	}
 
-	public static void compact(String younger, String older, String filename, boolean major) 
+	/*
+	 * Merges the SFiles, youngest first, in one pass. A major compaction has no older
+	 * version of the keys left to hide, so the Deletes are dropped. A new SFile is
+	 * started every maxFileSize bytes of data.
+	 * 
+	 * @return the new SFiles, in key order. None if nothing is left.
+	 */
+	public static List<String> compact(List<String> sfiles, boolean major, long maxFileSize) 
 	throws IOException {
 
-		FSSFileIterator f1 = new FSSFileIterator(younger);
-		FSSFileIterator f2 = new FSSFileIterator(older);
-		List<FSSFileIterator> iterators = new ArrayList<FSSFileIterator>();
-		iterators.add(f1);
-		iterators.add(f2);
+		List<FSSFileIterator> iterators = new ArrayList<FSSFileIterator>(sfiles.size());
+		boolean opened = false;
+		try {
+			
+			for (String sfile: sfiles)
+				iterators.add(new FSSFileIterator(sfile));
+			opened = true;
+			
+		} finally {
+			if (!opened)
+				closeQuietly(iterators);
+		}
 		
-		FSSFileCursor cursor = new FSSFileCursor(iterators);
-		FSSFileWriter writer = new FSSFileWriter(filename);
+		return merge(iterators, major, maxFileSize);
+	}
+	
+	/*
+	 * Like compact(), but the key space is cut in up to ranges disjoint ranges that 
+	 * are merged in parallel by the executor, each into its own SFiles. The cuts are
+	 * taken from the SparseIndex of the SFiles, so each range gets about the same 
+	 * number of records. If a range fails, the SFiles written by all of them are 
+	 * deleted.
+	 * 
+	 * @return the new SFiles, in key order. None if nothing is left.
+	 */
+	public static List<String> compact(final List<FSSFile> sfiles, final boolean major, final long maxFileSize, 
+			ExecutorService executor, int ranges) 
+	throws IOException {
 		
-		while (cursor.hasNext()) {
-			Operation o = cursor.next();
-			if (major && o instanceof Delete)
-				continue;
-
-			writer.write(o);
+		byte[][] splits = split(sfiles, ranges);
+		if (splits.length == 0)
+			return compact(getNames(sfiles), major, maxFileSize);
+		
+		List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>(splits.length + 1);
+		for (int i = 0; i <= splits.length; i++) {
+			final byte[] startKey = i > 0 ? splits[i - 1] : null;
+			final byte[] endKey   = i < splits.length ? splits[i] : null;
+			
+			futures.add(executor.submit(new Callable<List<String>>() {
+				public List<String> call() throws IOException {
+					List<OperationIterator> iterators = new ArrayList<OperationIterator>(sfiles.size());
+					boolean opened = false;
+					try {
+						
+						for (FSSFile sfile: sfiles)
+							iterators.add(sfile.scan(startKey, endKey));
+						opened = true;
+						
+					} finally {
+						if (!opened)
+							closeQuietly(iterators);
+					}
+					
+					return merge(iterators, major, maxFileSize);
+				}
+			}));
+		}
+		
+		// wait for all of them, even if one fails, so nobody is left writing
+		List<String> compacted = new ArrayList<String>();
+		Throwable failure = null;
+		for (Future<List<String>> future: futures) {
+			try {
+				compacted.addAll(Uninterruptibles.getUninterruptibly(future));
+			} catch (ExecutionException e) {
+				failure = e.getCause();
+			}
 		}
+		
+		if (failure != null) {
+			for (String filename: compacted)
+				FSUtils.delete(new File(filename));
 			
-		cursor.close();
+			if (failure instanceof IOException)
+				throw (IOException) failure;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure instanceof Error)
+				throw (Error) failure;
+			throw new IOException("Sub-range compaction failed", failure);
+		}
+		
+		return compacted;
+	}
+	
+	/*
+	 * Up to ranges - 1 distinct keys, sorted, picked at regular intervals among the 
+	 * keys sampled by the SparseIndexes.
+	 */
+	private static byte[][] split(List<FSSFile> sfiles, int ranges) 
+	throws IOException {
+		
+		List<byte[]> samples = new ArrayList<byte[]>();
+		for (FSSFile sfile: sfiles) {
+			SparseIndex index = sfile.getSparseIndex();
+			for (int i = 0; i < index.size(); i++)
+				samples.add(index.getKey(i));
+		}
+		Collections.sort(samples, comparator);
+		
+		List<byte[]> splits = new ArrayList<byte[]>(Math.max(ranges - 1, 0));
+		for (int i = 1; i < ranges && !samples.isEmpty(); i++) {
+			byte[] key = samples.get((int) ((long) i * samples.size() / ranges));
+			
+			// the first range must not be empty, neither the others
+			byte[] previous = splits.isEmpty() ? samples.get(0) : splits.get(splits.size() - 1);
+			if (comparator.compare(key, previous) > 0)
+				splits.add(key);
+		}
+		
+		return splits.toArray(new byte[splits.size()][]);
+	}
+	
+	private static List<String> getNames(List<FSSFile> sfiles) {
+		List<String> names = new ArrayList<String>(sfiles.size());
+		for (FSSFile sfile: sfiles)
+			names.add(sfile.getName());
+		
+		return names;
+	}
+	
+	/*
+	 * The iterators are closed in any case. If the merge fails, the SFiles it has 
+	 * written so far are deleted.
+	 */
+	private static List<String> merge(List<? extends OperationIterator> iterators, boolean major, long maxFileSize) 
+	throws IOException {
+		
+		List<String> compacted = new ArrayList<String>();
+		FSSFileWriter writer   = null;
+		boolean done = false;
+		try {
+			
+			FSSFileCursor cursor = new FSSFileCursor(iterators);
+			while (cursor.hasNext()) {
+				Operation o = cursor.next();
+				if (major && o instanceof Delete)
+					continue;
+				
+				if (writer != null && writer.getSize() >= maxFileSize) {
+					FSSFileWriter full = writer;
+					writer = null;
+					close(full, compacted.get(compacted.size() - 1));
+				}
+				if (writer == null) {
+					compacted.add(FilenamesFactory.getSFileName());
+					writer = new FSSFileWriter(compacted.get(compacted.size() - 1));
+				}
+
+				writer.write(o);
+			}
+			
+			cursor.close();
+			if (writer != null) {
+				FSSFileWriter last = writer;
+				writer = null;
+				close(last, compacted.get(compacted.size() - 1));
+			}
+			done = true;
+			
+			return compacted;
+			
+		} finally {
+			if (!done) {
+				closeQuietly(iterators);
+				if (writer != null)
+					closeQuietly(writer);
+				for (String filename: compacted)
+					FSUtils.delete(new File(filename));
+			}
+		}
+	}
+	
+	private static void closeQuietly(Iterable<? extends Closeable> closeables) {
+		for (Closeable closeable: closeables)
+			closeQuietly(closeable);
+	}
+	
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			logger.warn("Error while closing after a failed compaction", e);
+		}
+	}
+	
+	private static void close(FSSFileWriter writer, String filename) 
+	throws IOException {
+		
 		writer.close();
 		
 		FSSFileIndexer indexer = new FSSFileIndexer(filename);
@@ -0,0 +1,264 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package org.acaro.sketches.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Flow control for the writes, based on the number of immutable Memstores (the
+ * RAMSFiles) waiting to be scribed. Each of them holds a full Memstore on the heap, 
+ * so when scribing falls behind the writes have to slow down.
+ * 
+ * From sketches.write.slowdown.memstores (default: 2) immutable Memstores on, 
+ * each write is delayed by sketches.write.slowdown.delay microseconds (default: 100), 
+ * doubled for every further immutable Memstore. At sketches.write.stop.memstores 
+ * (default: 4) the writes stop until a scribe is done. That is also the most 
+ * immutable Memstores there can be: no Memstore is swapped out beyond it.
+ * 
+ * The async writes can't park their caller. They are not delayed, and while the 
+ * writes are stopped they are queued, up to sketches.write.stop.deferred of them
+ * (default: 10000), and run once the writes can go again. Beyond that they fail 
+ * right away. The queue is drained in order by a single task on the executor, and 
+ * until it's empty the new async writes queue up behind it, so they can't overtake
+ * the deferred ones.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class WriteController {
+	private static final Logger logger = LoggerFactory.getLogger(WriteController.class);
+	
+	public enum Stall { NONE, DELAYED, STOPPED }
+
+	private final int slowdown;
+	private final int stop;
+	private final long delay;
+	private volatile Stall stall = Stall.NONE;
+	private volatile int immutables = 0;
+	private boolean released = false;
+	private final int maxDeferred;
+	private final Executor executor;
+	// guarded by this
+	private final Queue<Runnable> deferred = new LinkedList<Runnable>();
+	private boolean draining = false;
+	private final Runnable drainer = new Drainer();
+	private final AtomicLong delayedWrites = new AtomicLong(0);
+	private final AtomicLong stoppedWrites = new AtomicLong(0);
+	private final AtomicLong stallTime     = new AtomicLong(0);
+	
+	/**
+	 * @param executor where the deferred writes are drained, one task at a time
+	 */
+	public WriteController(Configuration conf, Executor executor) {
+		this.stop        = Math.max(conf.getInt("sketches.write.stop.memstores", 4), 1);
+		this.slowdown    = conf.getInt("sketches.write.slowdown.memstores", 2);
+		this.delay       = TimeUnit.MICROSECONDS.toNanos(conf.getInt("sketches.write.slowdown.delay", 100));
+		this.maxDeferred = conf.getInt("sketches.write.stop.deferred", 10000);
+		this.executor    = executor;
+	}
+	
+	/*
+	 * Called with the number of immutable Memstores every time it changes.
+	 */
+	public synchronized void update(int immutables) {
+		this.immutables = immutables;
+		
+		if (released)
+			stall = Stall.NONE;
+		else if (immutables >= stop)
+			stall = Stall.STOPPED;
+		else if (immutables >= slowdown)
+			stall = Stall.DELAYED;
+		else
+			stall = Stall.NONE;
+		
+		if (stall != Stall.STOPPED) {
+			notifyAll();
+			runDeferred();
+		}
+	}
+	
+	/*
+	 * Lets the stalled writes go, for good. 
+	 */
+	public synchronized void release() {
+		released = true;
+		update(immutables);
+	}
+	
+	/**
+	 * Delays or blocks the calling write, depending on the stall. It must be called
+	 * without holding a pin on the readers, or the scribe would wait for it.
+	 */
+	public void await() 
+	throws InterruptedIOException {
+		
+		Stall current = stall;
+		if (current == Stall.NONE)
+			return;
+		
+		long start = System.nanoTime();
+		try {
+			
+			if (current == Stall.DELAYED) {
+				delayedWrites.incrementAndGet();
+				// Thread.sleep() would round it up to the millisecond
+				LockSupport.parkNanos(delay << Math.min(Math.max(immutables - slowdown, 0), 20));
+				if (Thread.interrupted())
+					throw new InterruptedException();
+			} else {
+				stoppedWrites.incrementAndGet();
+				synchronized (this) {
+					while (stall == Stall.STOPPED)
+						wait();
+				}
+			}
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while the writes are stalled");
+		} finally {
+			stallTime.addAndGet(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * For the writes that can't wait: if the writes are stopped, or deferred writes
+	 * are still queued or running, the write is queued behind them, to be run in 
+	 * order once the writes can go again.
+	 * 
+	 * @return false if the write can go right away
+	 * @throws IOException if too many writes are queued already
+	 */
+	public synchronized boolean defer(Runnable write) 
+	throws IOException {
+		
+		if (stall != Stall.STOPPED && deferred.isEmpty() && !draining)
+			return false;
+		
+		if (deferred.size() >= maxDeferred)
+			throw new IOException("The writes are stopped and " + deferred.size() + " are queued already");
+		
+		stoppedWrites.incrementAndGet();
+		deferred.add(write);
+		runDeferred();
+		
+		return true;
+	}
+	
+	public synchronized int getDeferredWrites() {
+		return deferred.size();
+	}
+	
+	public Stall getStall() {
+		return this.stall;
+	}
+	
+	public int getImmutableMemstores() {
+		return this.immutables;
+	}
+	
+	/*
+	 * The most immutable Memstores there can be.
+	 */
+	public int getMaxImmutableMemstores() {
+		return this.stop;
+	}
+	
+	public long getDelayedWrites() {
+		return delayedWrites.get();
+	}
+	
+	public long getStoppedWrites() {
+		return stoppedWrites.get();
+	}
+	
+	/**
+	 * @return the milliseconds spent by the writes waiting, summed over the writers
+	 */
+	public long getStallTime() {
+		return TimeUnit.NANOSECONDS.toMillis(stallTime.get());
+	}
+	
+	public String toString() {
+		return "WriteController stall: " + getStall() + " immutable memstores: " + getImmutableMemstores() 
+			+ " delayed writes: " + getDelayedWrites() + " stopped writes: " + getStoppedWrites() 
+			+ " deferred writes: " + getDeferredWrites() + " stall time: " + getStallTime() + "ms";
+	}
+	
+	/*
+	 * Starts the Drainer, if there's something to drain and it's not running yet. 
+	 * Guarded by this.
+	 */
+	private void runDeferred() {
+		
+		if (stall == Stall.STOPPED || deferred.isEmpty() || draining)
+			return;
+		
+		draining = true;
+		try {
+			executor.execute(drainer);
+		} catch (RejectedExecutionException e) {
+			// shutting down, but not on the thread that lifted the stall
+			Thread thread = new Thread(drainer, "WriteController-drainer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/*
+	 * Runs the deferred writes in order, until the queue is empty or the writes are
+	 * stopped again. It's still draining while the last write runs, so a new write 
+	 * can't go before it.
+	 */
+	private class Drainer
+	implements Runnable {
+		
+		@Override
+		public void run() {
+			
+			while (true) {
+				
+				Runnable write;
+				synchronized (WriteController.this) {
+					if (stall == Stall.STOPPED || deferred.isEmpty()) {
+						draining = false;
+						return;
+					}
+					write = deferred.poll();
+				}
+				
+				try {
+					write.run();
+				} catch (RuntimeException e) {
+					logger.error("Error while running a deferred write", e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.acaro.sketches.operation.Operation;
+import org.acaro.sketches.operation.Update;
+import org.acaro.sketches.sfile.FSSFile;
+import org.acaro.sketches.sfile.FSSFileIndexer;
+import org.acaro.sketches.sfile.FSSFileWriter;
+import org.acaro.sketches.utils.FSUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * What the tests share: Operations from Strings, and SFiles and logs in the
+ * temporary directory.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class TestHelper {
+
+	private static final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+	
+	public static byte[] bytes(String s) {
+		return s.getBytes(Charsets.UTF_8);
+	}
+	
+	public static String string(byte[] b) {
+		return new String(b, Charsets.UTF_8);
+	}
+	
+	public static Update update(String key, String value, long ts) {
+		return new Update(bytes(key), bytes(value), ts);
+	}
+	
+	/**
+	 * @return the name of a file that doesn't exist yet
+	 */
+	public static String newFilename(String prefix) 
+	throws IOException {
+		
+		File file = File.createTempFile(prefix, ".test");
+		FSUtils.delete(file);
+		
+		return file.getPath();
+	}
+	
+	/**
+	 * Writes and indexes an SFile with the Operations, in any order.
+	 */
+	public static FSSFile writeSFile(String filename, Operation... operations) 
+	throws IOException {
+		
+		Operation[] sorted = operations.clone();
+		Arrays.sort(sorted, new Comparator<Operation>() {
+			public int compare(Operation left, Operation right) {
+				return comparator.compare(left.getKey(), right.getKey());
+			}
+		});
+		
+		FSSFileWriter writer = new FSSFileWriter(filename);
+		for (Operation o: sorted)
+			writer.write(o);
+		writer.close();
+		
+		new FSSFileIndexer(filename).index();
+		
+		return new FSSFile(filename);
+	}
+	
+	/**
+	 * An SFile of n Updates of a value of size bytes, on the keys prefix + i.
+	 */
+	public static FSSFile writeSFile(String filename, String prefix, int n, int size, long ts) 
+	throws IOException {
+		
+		char[] value = new char[size];
+		Arrays.fill(value, 'v');
+		
+		Operation[] operations = new Operation[n];
+		for (int i = 0; i < n; i++)
+			operations[i] = update(prefix + String.format("%08d", i), new String(value), ts);
+		
+		return writeSFile(filename, operations);
+	}
+	
+	public static void delete(String filename) {
+		FSUtils.delete(new File(filename));
+	}
+}
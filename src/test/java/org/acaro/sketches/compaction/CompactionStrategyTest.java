@@ -0,0 +1,236 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.compaction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.acaro.sketches.TestHelper;
+import org.acaro.sketches.sfile.FSSFile;
+import org.acaro.sketches.utils.Configuration;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * What each CompactionStrategy selects, on SFiles of known sizes and key ranges.
+ * The leveled budgets are shrunk to 1MB by the test configuration.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class CompactionStrategyTest {
+
+	private final List<FSSFile> sfiles = new ArrayList<FSSFile>();
+	
+	@After
+	public void tearDown() 
+	throws IOException {
+		
+		for (FSSFile sfile: sfiles) {
+			sfile.close();
+			TestHelper.delete(sfile.getName());
+		}
+	}
+	
+	@Test
+	public void testSizeRatioWaitsForMaxFiles() 
+	throws IOException {
+		
+		CompactionStrategy strategy = new SizeRatioCompactionStrategy(Configuration.getConf());
+		FSSFile[] files = { small("a"), small("b"), small("c"), small("d") };
+		
+		assertFalse(strategy.needsCompaction(files));
+		assertNull(strategy.select(files));
+		assertEquals(0, strategy.getCompactionDebt(files));
+	}
+	
+	@Test
+	public void testSizeRatioMergesEverythingWhenSimilar() 
+	throws IOException {
+		
+		CompactionStrategy strategy = new SizeRatioCompactionStrategy(Configuration.getConf());
+		FSSFile[] files = { small("a"), small("b"), small("c"), small("d"), small("e") };
+		
+		Compaction compaction = strategy.select(files);
+		assertEquals(Arrays.asList(files), compaction.getInputs());
+		assertEquals(0, compaction.getLevel());
+		assertTrue(compaction.isMajor());
+		assertEquals(files[0].getSize(), strategy.getCompactionDebt(files));
+	}
+	
+	@Test
+	public void testSizeRatioLeavesABigOldSFileAlone() 
+	throws IOException {
+		
+		CompactionStrategy strategy = new SizeRatioCompactionStrategy(Configuration.getConf());
+		FSSFile[] files = { small("a"), small("b"), small("c"), small("d"), big("e") };
+		
+		Compaction compaction = strategy.select(files);
+		assertEquals(Arrays.asList(files).subList(0, 4), compaction.getInputs());
+		assertFalse(compaction.isMajor());
+	}
+	
+	@Test
+	public void testTieredWaitsForTheTrigger() 
+	throws IOException {
+		
+		CompactionStrategy strategy = new TieredCompactionStrategy(Configuration.getConf());
+		FSSFile[] files = { small("a"), small("b"), small("c") };
+		
+		assertFalse(strategy.needsCompaction(files));
+		assertNull(strategy.select(files));
+	}
+	
+	@Test
+	public void testTieredMergesAllOnSpaceAmplification() 
+	throws IOException {
+		
+		CompactionStrategy strategy = new TieredCompactionStrategy(Configuration.getConf());
+		FSSFile[] files = { small("a"), small("b"), small("c"), small("d") };
+		
+		Compaction compaction = strategy.select(files);
+		assertEquals(Arrays.asList(files), compaction.getInputs());
+		assertTrue(compaction.isMajor());
+	}
+	
+	@Test
+	public void testTieredMergesARunOfSimilarSizes() 
+	throws IOException {
+		
+		CompactionStrategy strategy = new TieredCompactionStrategy(Configuration.getConf());
+		FSSFile[] files = { small("a"), small("b"), small("c"), big("d") };
+		
+		Compaction compaction = strategy.select(files);
+		assertEquals(Arrays.asList(files).subList(0, 3), compaction.getInputs());
+		assertFalse(compaction.isMajor());
+	}
+	
+	@Test
+	public void testTieredCutsTheNumberOfSFiles() 
+	throws IOException {
+		
+		CompactionStrategy strategy = new TieredCompactionStrategy(Configuration.getConf());
+		// each one much bigger than the younger ones together
+		FSSFile[] files = { sfile("a", 10, 100), sfile("b", 40, 100), sfile("c", 160, 100), sfile("d", 4000, 100) };
+		
+		Compaction compaction = strategy.select(files);
+		assertEquals(Arrays.asList(files).subList(0, 2), compaction.getInputs());
+		assertFalse(compaction.isMajor());
+	}
+	
+	@Test
+	public void testLeveledWaitsForLevel0() 
+	throws IOException {
+		
+		CompactionStrategy strategy = new LeveledCompactionStrategy(Configuration.getConf());
+		FSSFile[] files = { small("a"), small("b"), small("c") };
+		
+		assertFalse(strategy.needsCompaction(files));
+		assertNull(strategy.select(files));
+		assertEquals(0, strategy.getCompactionDebt(files));
+	}
+	
+	@Test
+	public void testLeveledMergesLevel0WithTheOverlappingLevel1() 
+	throws IOException {
+		
+		CompactionStrategy strategy = new LeveledCompactionStrategy(Configuration.getConf());
+		FSSFile overlapping = level(small("a"), 1);
+		FSSFile disjoint    = level(small("z"), 1);
+		FSSFile[] files = { small("a"), small("a"), small("b"), small("b"), overlapping, disjoint };
+		
+		assertTrue(strategy.needsCompaction(files));
+		assertEquals(4 * files[0].getSize(), strategy.getCompactionDebt(files));
+		
+		Compaction compaction = strategy.select(files);
+		assertEquals(Arrays.asList(files).subList(0, 5), compaction.getInputs());
+		assertEquals(1, compaction.getLevel());
+		assertTrue(compaction.isMajor());
+	}
+	
+	@Test
+	public void testLeveledIsNotMajorWithOlderVersionsBelow() 
+	throws IOException {
+		
+		CompactionStrategy strategy = new LeveledCompactionStrategy(Configuration.getConf());
+		FSSFile[] files = { small("a"), small("a"), small("a"), small("a"), level(small("a"), 2) };
+		
+		Compaction compaction = strategy.select(files);
+		assertEquals(Arrays.asList(files).subList(0, 4), compaction.getInputs());
+		assertFalse(compaction.isMajor());
+	}
+	
+	@Test
+	public void testLeveledPushesOneSFileAtATimeRoundRobin() 
+	throws IOException {
+		
+		CompactionStrategy strategy = new LeveledCompactionStrategy(Configuration.getConf());
+		// level 1 is over its 1MB budget
+		FSSFile a  = level(sfile("a", 600, 1000), 1);
+		FSSFile b  = level(sfile("b", 600, 1000), 1);
+		FSSFile a2 = level(small("a"), 2);
+		FSSFile b2 = level(small("b"), 2);
+		FSSFile[] files = { b, a, b2, a2 };
+		
+		assertEquals(a.getSize() + b.getSize() - 1024 * 1024, strategy.getCompactionDebt(files));
+		
+		Compaction compaction = strategy.select(files);
+		assertEquals(Arrays.asList(a, a2), compaction.getInputs());
+		assertEquals(2, compaction.getLevel());
+		assertTrue(compaction.isMajor());
+		
+		compaction = strategy.select(files);
+		assertEquals(Arrays.asList(b, b2), compaction.getInputs());
+		
+		compaction = strategy.select(files);
+		assertEquals(Arrays.asList(a, a2), compaction.getInputs());
+	}
+	
+	private FSSFile small(String prefix) 
+	throws IOException {
+		
+		return sfile(prefix, 100, 100);
+	}
+	
+	private FSSFile big(String prefix) 
+	throws IOException {
+		
+		return sfile(prefix, 1000, 100);
+	}
+	
+	private FSSFile sfile(String prefix, int n, int size) 
+	throws IOException {
+		
+		FSSFile sfile = TestHelper.writeSFile(TestHelper.newFilename("sfile"), prefix, n, size, 1);
+		sfiles.add(sfile);
+		
+		return sfile;
+	}
+	
+	private static FSSFile level(FSSFile sfile, int level) {
+		sfile.setLevel(level);
+		
+		return sfile;
+	}
+}
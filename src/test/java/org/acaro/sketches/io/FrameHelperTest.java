@@ -0,0 +1,140 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.io;
+
+import static org.acaro.sketches.TestHelper.string;
+import static org.acaro.sketches.TestHelper.update;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.acaro.sketches.operation.Operation;
+import org.acaro.sketches.operation.OperationHelper;
+import org.junit.Test;
+
+/**
+ * @author Claudio Martella
+ *
+ */
+
+public class FrameHelperTest {
+
+	private static final int SALT = 0x1234567;
+	
+	@Test
+	public void testStreamRoundTrip() 
+	throws IOException {
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int first  = FrameHelper.write(update("key1", "value1", 1), out);
+		int second = FrameHelper.write(update("key2", "value2", 2), out);
+		out.close();
+		
+		assertEquals(first + second, bytes.size());
+		
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		Operation o = OperationHelper.readOperation(ByteBuffer.wrap(FrameHelper.read(in, bytes.size())));
+		assertEquals("key1", string(o.getKey()));
+		o = OperationHelper.readOperation(ByteBuffer.wrap(FrameHelper.read(in, bytes.size() - first)));
+		assertEquals("value2", string(o.getValue()));
+		assertEquals(2, o.getTimestamp());
+	}
+	
+	@Test
+	public void testSaltedBufferRoundTrip() 
+	throws IOException {
+		
+		ByteBuffer buffer = frame(SALT, update("key1", "value1", 1), update("key2", "value2", 2));
+		
+		assertEquals("key1", string(OperationHelper.readOperation(FrameHelper.read(buffer, SALT)).getKey()));
+		assertEquals("key2", string(OperationHelper.readOperation(FrameHelper.read(buffer, SALT)).getKey()));
+		assertEquals(0, buffer.remaining());
+	}
+	
+	@Test(expected = CorruptedRecordException.class)
+	public void testWrongSalt() 
+	throws IOException {
+		
+		FrameHelper.read(frame(SALT, update("key", "value", 1)), SALT + 2);
+	}
+	
+	@Test(expected = CorruptedRecordException.class)
+	public void testFlippedBit() 
+	throws IOException {
+		
+		ByteBuffer buffer = frame(SALT, update("key", "value", 1));
+		buffer.put(buffer.limit() - 1, (byte) (buffer.get(buffer.limit() - 1) ^ 1));
+		
+		FrameHelper.read(buffer, SALT);
+	}
+	
+	@Test(expected = CorruptedRecordException.class)
+	public void testTornPayload() 
+	throws IOException {
+		
+		ByteBuffer buffer = frame(SALT, update("key", "value", 1));
+		buffer.limit(buffer.limit() - 3);
+		
+		FrameHelper.read(buffer, SALT);
+	}
+	
+	@Test(expected = CorruptedRecordException.class)
+	public void testTornHeader() 
+	throws IOException {
+		
+		ByteBuffer buffer = frame(SALT, update("key", "value", 1));
+		buffer.limit(FrameHelper.HEADER_SIZE - 1);
+		
+		FrameHelper.read(buffer, SALT);
+	}
+	
+	@Test(expected = CorruptedRecordException.class)
+	public void testZeroedSpace() 
+	throws IOException {
+		
+		// what a preallocated segment holds past the last record
+		FrameHelper.read(ByteBuffer.allocate(64), 0);
+	}
+	
+	@Test(expected = CorruptedRecordException.class)
+	public void testTornStream() 
+	throws IOException {
+		
+		ByteBuffer buffer = frame(0, update("key", "value", 1));
+		byte[] torn = Arrays.copyOf(buffer.array(), buffer.limit() - 1);
+		
+		FrameHelper.read(new DataInputStream(new ByteArrayInputStream(torn)), torn.length);
+	}
+	
+	private static ByteBuffer frame(int salt, Writable... records) 
+	throws IOException {
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (Writable o: records) {
+			ByteArrayWriter framed = FrameHelper.frame(o, salt);
+			bytes.write(framed.getBuffer(), 0, framed.size());
+		}
+		
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+}
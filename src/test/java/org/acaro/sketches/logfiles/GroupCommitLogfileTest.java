@@ -0,0 +1,241 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.logfiles;
+
+import static org.acaro.sketches.TestHelper.bytes;
+import static org.acaro.sketches.TestHelper.string;
+import static org.acaro.sketches.TestHelper.update;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.acaro.sketches.TestHelper;
+import org.acaro.sketches.io.CorruptedRecordException;
+import org.acaro.sketches.io.FrameHelper;
+import org.acaro.sketches.operation.Operation;
+import org.acaro.sketches.operation.OperationHelper;
+import org.acaro.sketches.operation.Update;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * What a GroupCommitLogfile guarantees for each Durability is checked by reading 
+ * its segments back from a channel of our own.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class GroupCommitLogfileTest {
+
+	private String filename;
+	private GroupCommitLogfile log;
+	
+	@Before
+	public void setUp() 
+	throws IOException {
+		
+		filename = TestHelper.newFilename("log");
+		log      = new GroupCommitLogfile(filename, Durability.NONE);
+	}
+	
+	@After
+	public void tearDown() 
+	throws IOException {
+		
+		log.close();
+		for (String segment: LogSegments.list(filename))
+			TestHelper.delete(segment);
+	}
+	
+	@Test
+	public void testFlushWritesAreInTheFileWhenTheyReturn() 
+	throws IOException {
+		
+		for (int i = 0; i < 20; i++) {
+			log.write(update("key" + i, "value" + i, i), Durability.FLUSH);
+			assertEquals(i + 1, readLog().size());
+		}
+	}
+	
+	@Test
+	public void testFsyncWritesAreInTheFileWhenTheyReturn() 
+	throws IOException {
+		
+		for (int i = 0; i < 20; i++) {
+			log.write(update("key" + i, "value" + i, i), Durability.FSYNC);
+			assertEquals(i + 1, readLog().size());
+		}
+	}
+	
+	@Test
+	public void testNoneWritesReachTheFileOnFlush() 
+	throws IOException {
+		
+		for (int i = 0; i < 20; i++)
+			log.write(update("key" + i, "value" + i, i));
+		log.flush();
+		
+		List<Operation> records = readLog();
+		assertEquals(20, records.size());
+		for (int i = 0; i < 20; i++)
+			assertEquals("key" + i, string(records.get(i).getKey()));
+	}
+	
+	@Test
+	public void testAsyncWritesCompleteAtTheirDurability() 
+	throws Exception {
+		
+		ListenableFuture<Void> none  = log.writeAsync(update("none", "value", 1), Durability.NONE);
+		ListenableFuture<Void> flush = log.writeAsync(update("flush", "value", 2), Durability.FLUSH);
+		ListenableFuture<Void> fsync = log.writeAsync(update("fsync", "value", 3), Durability.FSYNC);
+		
+		assertTrue(none.isDone());
+		flush.get(10, TimeUnit.SECONDS);
+		assertTrue(readLog().size() >= 2);
+		fsync.get(10, TimeUnit.SECONDS);
+		assertEquals(3, readLog().size());
+	}
+	
+	@Test
+	public void testRecordBiggerThanTheRing() 
+	throws IOException {
+		
+		// the ring is 64KB in the test configuration
+		byte[] value = new byte[200 * 1024];
+		new Random(7).nextBytes(value);
+		
+		log.write(update("small", "value", 1), Durability.NONE);
+		log.write(new Update(bytes("big"), value, 2), Durability.FLUSH);
+		
+		List<Operation> records = readLog();
+		assertEquals(2, records.size());
+		assertArrayEquals(value, records.get(1).getValue());
+	}
+	
+	@Test(expected = IOException.class)
+	public void testRecordBiggerThanASegment() 
+	throws IOException {
+		
+		log.write(new Update(bytes("huge"), new byte[2 * 1024 * 1024], 1), Durability.FLUSH);
+	}
+	
+	@Test(expected = IOException.class)
+	public void testWriteAfterClose() 
+	throws IOException {
+		
+		log.close();
+		log.write(update("key", "value", 1));
+	}
+	
+	@Test
+	public void testConcurrentWritersAcrossSegments() 
+	throws Exception {
+		
+		final int threads = 8;
+		final int records = 500;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final byte[] value = new byte[1000];
+		
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			new Thread() {
+				public void run() {
+					try {
+						Durability[] durabilities = Durability.values();
+						for (int i = 0; i < records; i++)
+							log.write(new Update(bytes(thread + ":" + i), value, i), durabilities[i % durabilities.length]);
+					} catch (Throwable e) {
+						failure.set(e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		log.close();
+		
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		
+		// 4MB of records in segments of 1MB
+		assertTrue(LogSegments.list(filename).size() > 4);
+		
+		// every record, each thread's in the order it wrote them
+		Map<String, Integer> last = new HashMap<String, Integer>();
+		List<Operation> read = readLog();
+		for (Operation o: read) {
+			String[] key = string(o.getKey()).split(":");
+			Integer previous = last.put(key[0], Integer.parseInt(key[1]));
+			assertEquals(previous == null ? 0 : previous + 1, Integer.parseInt(key[1]));
+		}
+		assertEquals(threads * records, read.size());
+	}
+	
+	/*
+	 * The records of the log, through sealed segments, up to the first one that 
+	 * doesn't verify.
+	 */
+	private List<Operation> readLog() 
+	throws IOException {
+		
+		int salt = LogSegments.getSalt(filename);
+		List<Operation> operations = new ArrayList<Operation>();
+		
+		for (String segment: LogSegments.list(filename)) {
+			
+			FileChannel channel = new RandomAccessFile(segment, "r").getChannel();
+			ByteBuffer buffer   = ByteBuffer.allocate((int) channel.size());
+			try {
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+			} finally {
+				channel.close();
+			}
+			buffer.flip();
+			
+			while (true) {
+				if (LogSegments.isSeal(buffer, salt))
+					break;
+				
+				try {
+					operations.add(OperationHelper.readOperation(FrameHelper.read(buffer, salt)));
+				} catch (CorruptedRecordException e) {
+					return operations;
+				}
+			}
+		}
+		
+		return operations;
+	}
+}
@@ -0,0 +1,203 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.memstore;
+
+import static org.acaro.sketches.TestHelper.bytes;
+import static org.acaro.sketches.TestHelper.string;
+import static org.acaro.sketches.TestHelper.update;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.acaro.sketches.TestHelper;
+import org.acaro.sketches.io.FrameHelper;
+import org.acaro.sketches.logfiles.Durability;
+import org.acaro.sketches.logfiles.GroupCommitLogfile;
+import org.acaro.sketches.logfiles.LogSegments;
+import org.acaro.sketches.operation.Delete;
+import org.acaro.sketches.operation.OperationBatch;
+import org.acaro.sketches.operation.Update;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author Claudio Martella
+ *
+ */
+
+public class LogfileReplayerTest {
+
+	private final List<String> logs     = new ArrayList<String>();
+	private final List<Memstore> stores = new ArrayList<Memstore>();
+	
+	@After
+	public void tearDown() 
+	throws IOException {
+		
+		for (Memstore memstore: stores)
+			memstore.close();
+		for (String log: logs)
+			for (String segment: LogSegments.list(log))
+				TestHelper.delete(segment);
+	}
+	
+	@Test
+	public void testReplayRestoresTheLatestVersions() 
+	throws IOException {
+		
+		String filename = newLog();
+		GroupCommitLogfile log = new GroupCommitLogfile(filename, Durability.NONE);
+		log.write(update("a", "1", 1));
+		log.write(update("b", "1", 2));
+		log.write(update("a", "2", 3));
+		log.write(new OperationBatch().add(update("c", "1", 4)).add(new Delete(bytes("b"), 4)));
+		log.close();
+		
+		Memstore memstore = replay(filename);
+		assertEquals(3, memstore.getNumberOfItems());
+		assertEquals("2", string(memstore.get(bytes("a")).getValue()));
+		assertTrue(memstore.get(bytes("b")) instanceof Delete);
+		assertEquals("1", string(memstore.get(bytes("c")).getValue()));
+	}
+	
+	@Test
+	public void testReplayGoesThroughSealedSegments() 
+	throws IOException {
+		
+		String filename = newLog();
+		GroupCommitLogfile log = new GroupCommitLogfile(filename, Durability.NONE);
+		// 3MB in segments of 1MB, each one sealed where the next record didn't fit
+		byte[] value = new byte[3000];
+		for (int i = 0; i < 1000; i++)
+			log.write(new Update(bytes("key" + i), value, i));
+		log.close();
+		
+		assertTrue(LogSegments.list(filename).size() > 3);
+		assertEquals(1000, replay(filename).getNumberOfItems());
+	}
+	
+	@Test
+	public void testTornTailIsDropped() 
+	throws IOException {
+		
+		String filename = newLog();
+		GroupCommitLogfile log = new GroupCommitLogfile(filename, Durability.NONE);
+		for (int i = 0; i < 10; i++)
+			log.write(update("key" + i, "value" + i, i));
+		log.close();
+		
+		// a crash in the middle of the last record
+		tearLastRecord(filename);
+		
+		Memstore memstore = replay(filename);
+		assertEquals(9, memstore.getNumberOfItems());
+		assertNull(memstore.get(bytes("key9")));
+		
+		// the log goes on after the last good record, the torn one never comes back
+		memstore.put(bytes("after"), update("after", "value", 10), Durability.FLUSH);
+		memstore.close();
+		stores.remove(memstore);
+		
+		memstore = replay(filename);
+		assertEquals(10, memstore.getNumberOfItems());
+		assertNull(memstore.get(bytes("key9")));
+		assertEquals("value", string(memstore.get(bytes("after")).getValue()));
+	}
+	
+	@Test
+	public void testStaleRecordsOfARecycledSegmentAreNotReplayed() 
+	throws IOException {
+		
+		String old = newLog();
+		GroupCommitLogfile log = new GroupCommitLogfile(old, Durability.NONE);
+		for (int i = 0; i < 100; i++)
+			log.write(update("old" + i, "value", i));
+		log.close();
+		LogSegments.getSegments().recycle(old);
+		
+		// takes over the segments of the old log
+		String filename = newLog();
+		log = new GroupCommitLogfile(filename, Durability.NONE);
+		log.write(update("new", "value", 1));
+		log.close();
+		
+		assertFalse(new File(old + ".0").exists());
+		
+		Memstore memstore = replay(filename);
+		assertEquals(1, memstore.getNumberOfItems());
+		assertNull(memstore.get(bytes("old99")));
+	}
+	
+	private String newLog() 
+	throws IOException {
+		
+		String filename = TestHelper.newFilename("log");
+		logs.add(filename);
+		
+		return filename;
+	}
+	
+	private Memstore replay(String filename) 
+	throws IOException {
+		
+		Memstore memstore = new LogfileReplayer(filename).replay();
+		stores.add(memstore);
+		
+		return memstore;
+	}
+	
+	/*
+	 * Zeroes the second half of the last record of the first segment.
+	 */
+	private static void tearLastRecord(String filename) 
+	throws IOException {
+		
+		FileChannel channel = new RandomAccessFile(LogSegments.list(filename).get(0), "rw").getChannel();
+		try {
+			
+			ByteBuffer header = ByteBuffer.allocate(FrameHelper.HEADER_SIZE);
+			long position = 0;
+			long last     = -1;
+			int length    = 0;
+			while (true) {
+				header.clear();
+				channel.read(header, position);
+				int next = header.getInt(0);
+				if (next <= 0)
+					break;
+				
+				last     = position;
+				length   = next;
+				position += FrameHelper.HEADER_SIZE + next;
+			}
+			
+			channel.write(ByteBuffer.allocate(length / 2), last + FrameHelper.HEADER_SIZE + length - length / 2);
+			channel.force(false);
+			
+		} finally {
+			channel.close();
+		}
+	}
+}
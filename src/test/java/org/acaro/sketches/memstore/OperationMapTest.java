@@ -0,0 +1,207 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.memstore;
+
+import static org.acaro.sketches.TestHelper.bytes;
+import static org.acaro.sketches.TestHelper.string;
+import static org.acaro.sketches.TestHelper.update;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.acaro.sketches.operation.Delete;
+import org.acaro.sketches.operation.Operation;
+import org.acaro.sketches.operation.Update;
+import org.junit.Test;
+
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * The same behaviour is expected from every OperationMap.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class OperationMapTest {
+
+	private static final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+	
+	private static List<OperationMap> maps() {
+		List<OperationMap> maps = new ArrayList<OperationMap>();
+		maps.add(new OperationHashMap(16, 4));
+		maps.add(new SkipListOperationMap());
+		maps.add(new ArenaOperationMap(16, 4, 4096));
+		
+		return maps;
+	}
+	
+	@Test
+	public void testKeysAreComparedByContent() {
+		for (OperationMap map: maps()) {
+			String name = map.getClass().getSimpleName();
+			
+			assertNull(name, map.put(update("key", "first", 1)));
+			Operation old = map.put(update("key", "second", 2));
+			
+			assertNotNull(name + " returns the overwritten Operation", old);
+			assertEquals(name, "first", string(old.getValue()));
+			assertEquals(name, 1, map.size());
+			// a different array with the same content
+			assertEquals(name, "second", string(map.get(bytes("key")).getValue()));
+			assertNull(name, map.get(bytes("key2")));
+		}
+	}
+	
+	@Test
+	public void testDeleteOverwritesUpdate() {
+		for (OperationMap map: maps()) {
+			String name = map.getClass().getSimpleName();
+			
+			map.put(update("key", "value", 1));
+			map.put(new Delete(bytes("key"), 2));
+			
+			Operation o = map.get(bytes("key"));
+			assertTrue(name, o instanceof Delete);
+			assertEquals(name, 2, o.getTimestamp());
+			assertEquals(name, 1, map.size());
+		}
+	}
+	
+	@Test
+	public void testSortedIsInUnsignedKeyOrder() {
+		Random random = new Random(42);
+		
+		for (OperationMap map: maps()) {
+			String name = map.getClass().getSimpleName();
+			TreeMap<byte[], byte[]> expected = new TreeMap<byte[], byte[]>(comparator);
+			
+			for (int i = 0; i < 2000; i++) {
+				// bytes above 0x7f sort after the others
+				byte[] key = new byte[1 + random.nextInt(8)];
+				random.nextBytes(key);
+				byte[] value = bytes("v" + i);
+				
+				map.put(new Update(key, value, i));
+				expected.put(key, value);
+			}
+			
+			assertEquals(name, expected.size(), map.size());
+			
+			byte[] previous = null;
+			int n = 0;
+			for (Operation o: map.sorted()) {
+				if (previous != null)
+					assertTrue(name + " keys in order", comparator.compare(previous, o.getKey()) < 0);
+				assertArrayEquals(name, expected.get(o.getKey()), o.getValue());
+				previous = o.getKey();
+				n++;
+			}
+			assertEquals(name, expected.size(), n);
+		}
+	}
+	
+	@Test
+	public void testRangeBounds() {
+		for (OperationMap map: maps()) {
+			String name = map.getClass().getSimpleName();
+			
+			for (char c = 'a'; c <= 'e'; c++)
+				map.put(update(String.valueOf(c), "v", 1));
+			
+			assertEquals(name, "bc", keys(map.range(bytes("b"), bytes("d"))));
+			assertEquals(name, "abc", keys(map.range(null, bytes("d"))));
+			assertEquals(name, "cde", keys(map.range(bytes("c"), null)));
+			assertEquals(name, "abcde", keys(map.range(null, null)));
+			assertEquals(name, "", keys(map.range(bytes("x"), null)));
+		}
+	}
+	
+	@Test
+	public void testClear() {
+		for (OperationMap map: maps()) {
+			String name = map.getClass().getSimpleName();
+			
+			map.put(update("key", "value", 1));
+			map.clear();
+			assertEquals(name, 0, map.size());
+			assertNull(name, map.get(bytes("key")));
+			
+			map.put(update("key", "again", 2));
+			assertEquals(name, "again", string(map.get(bytes("key")).getValue()));
+		}
+	}
+	
+	@Test
+	public void testArenaRecordBiggerThanASlab() {
+		ArenaOperationMap map = new ArenaOperationMap(16, 4, 4096);
+		byte[] value = new byte[10000];
+		new Random(1).nextBytes(value);
+		
+		map.put(new Update(bytes("big"), value, 1));
+		map.put(update("small", "value", 1));
+		
+		assertArrayEquals(value, map.get(bytes("big")).getValue());
+		assertEquals("value", string(map.get(bytes("small")).getValue()));
+	}
+	
+	@Test
+	public void testConcurrentPuts() 
+	throws InterruptedException {
+		
+		final int threads = 4;
+		final int keys    = 5000;
+		
+		for (final OperationMap map: maps()) {
+			String name = map.getClass().getSimpleName();
+			final CountDownLatch done = new CountDownLatch(threads);
+			
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				new Thread() {
+					public void run() {
+						// every thread writes every key, the last timestamp of each thread wins in turn
+						for (int i = 0; i < keys; i++)
+							map.put(update("key" + i, "thread" + thread, thread));
+						done.countDown();
+					}
+				}.start();
+			}
+			done.await();
+			
+			assertEquals(name, keys, map.size());
+			for (int i = 0; i < keys; i++)
+				assertNotNull(name, map.get(bytes("key" + i)));
+		}
+	}
+	
+	private static String keys(Iterable<Operation> operations) {
+		StringBuilder keys = new StringBuilder();
+		for (Operation o: operations)
+			keys.append(string(o.getKey()));
+		
+		return keys.toString();
+	}
+}
@@ -0,0 +1,201 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.sfile;
+
+import static org.acaro.sketches.TestHelper.bytes;
+import static org.acaro.sketches.TestHelper.string;
+import static org.acaro.sketches.TestHelper.update;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.acaro.sketches.TestHelper;
+import org.acaro.sketches.io.OperationIterator;
+import org.acaro.sketches.operation.Delete;
+import org.acaro.sketches.operation.Operation;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The merge of FSSFileCursor over in-memory iterators, and the scans of FSSFile it
+ * is fed with.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class FSSFileCursorTest {
+
+	private final List<FSSFile> sfiles = new ArrayList<FSSFile>();
+	
+	@After
+	public void tearDown() 
+	throws IOException {
+		
+		for (FSSFile sfile: sfiles) {
+			sfile.close();
+			TestHelper.delete(sfile.getName());
+		}
+	}
+	
+	@Test
+	public void testMergeIsInKeyOrderAndYoungestWins() 
+	throws IOException {
+		
+		Random random = new Random(1);
+		List<OperationIterator> iterators = new ArrayList<OperationIterator>();
+		// the youngest version of each key, as "iterator:key"
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		
+		// youngest first
+		for (int i = 0; i < 24; i++) {
+			TreeMap<String, Operation> run = new TreeMap<String, Operation>();
+			for (int j = 0; j < 300; j++) {
+				String key = String.format("key%05d", random.nextInt(3000));
+				run.put(key, update(key, i + ":" + key, 1000 - i));
+				if (!expected.containsKey(key))
+					expected.put(key, i + ":" + key);
+			}
+			iterators.add(iterator(run.values()));
+		}
+		
+		FSSFileCursor cursor = new FSSFileCursor(iterators);
+		Iterator<Map.Entry<String, String>> e = expected.entrySet().iterator();
+		while (cursor.hasNext()) {
+			Operation o = cursor.next();
+			Map.Entry<String, String> next = e.next();
+			
+			assertEquals(next.getKey(), string(o.getKey()));
+			assertEquals(next.getValue(), string(o.getValue()));
+		}
+		assertFalse(e.hasNext());
+		cursor.close();
+	}
+	
+	@Test
+	public void testEmptyIteratorsAndDeletes() 
+	throws IOException {
+		
+		List<Operation> empty = new ArrayList<Operation>();
+		List<OperationIterator> iterators = new ArrayList<OperationIterator>();
+		iterators.add(iterator(empty));
+		iterators.add(iterator(Arrays.<Operation>asList(new Delete(bytes("a"), 3), update("c", "young", 3))));
+		iterators.add(iterator(empty));
+		iterators.add(iterator(Arrays.<Operation>asList(update("a", "old", 1), update("b", "old", 1), update("c", "old", 1))));
+		
+		FSSFileCursor cursor = new FSSFileCursor(iterators);
+		
+		// the Deletes are left to the compaction to drop
+		assertTrue(cursor.next() instanceof Delete);
+		assertEquals("old", string(cursor.next().getValue()));
+		assertEquals("young", string(cursor.next().getValue()));
+		assertFalse(cursor.hasNext());
+	}
+	
+	@Test
+	public void testNoIterators() 
+	throws IOException {
+		
+		assertFalse(new FSSFileCursor(new ArrayList<OperationIterator>()).hasNext());
+	}
+	
+	@Test
+	public void testScanBounds() 
+	throws IOException {
+		
+		// many sparse index entries with the test interval of 16
+		FSSFile sfile = sfile("key", 1000, 10, 1);
+		
+		assertEquals(1000, count(sfile.scan(null, null)));
+		assertEquals(100, count(sfile.scan(bytes("key00000100"), bytes("key00000200"))));
+		assertEquals(900, count(sfile.scan(bytes("key00000100"), null)));
+		assertEquals(100, count(sfile.scan(null, bytes("key00000100"))));
+		// bounds between the keys
+		assertEquals(10, count(sfile.scan(bytes("key00000500x"), bytes("key00000510x"))));
+		assertEquals(0, count(sfile.scan(bytes("zzz"), null)));
+		assertEquals(0, count(sfile.scan(null, bytes("a"))));
+		
+		OperationIterator scan = sfile.scan(bytes("key00000995"), null);
+		assertEquals("key00000995", string(scan.next().getKey()));
+	}
+	
+	@Test
+	public void testMergedScanOfSFiles() 
+	throws IOException {
+		
+		// the same keys in three SFiles, youngest first
+		List<OperationIterator> scans = new ArrayList<OperationIterator>();
+		for (int i = 0; i < 3; i++)
+			scans.add(sfile("key", 300 - i * 100, 10, 3 - i).scan(bytes("key00000050"), bytes("key00000250")));
+		
+		FSSFileCursor cursor = new FSSFileCursor(scans);
+		int n = 0;
+		while (cursor.hasNext()) {
+			Operation o = cursor.next();
+			assertEquals(String.format("key%08d", 50 + n), string(o.getKey()));
+			// key00000000-key00000099 are in all of them, the youngest one has all the keys
+			assertEquals(3, o.getTimestamp());
+			n++;
+		}
+		assertEquals(200, n);
+		cursor.close();
+	}
+	
+	private FSSFile sfile(String prefix, int n, int size, long ts) 
+	throws IOException {
+		
+		FSSFile sfile = TestHelper.writeSFile(TestHelper.newFilename("sfile"), prefix, n, size, ts);
+		sfiles.add(sfile);
+		
+		return sfile;
+	}
+	
+	private static int count(OperationIterator iterator) 
+	throws IOException {
+		
+		int n = 0;
+		for (; iterator.hasNext(); iterator.next())
+			n++;
+		iterator.close();
+		
+		return n;
+	}
+	
+	private static OperationIterator iterator(Iterable<Operation> operations) {
+		final Iterator<Operation> iterator = operations.iterator();
+		
+		return new OperationIterator() {
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+			
+			public Operation next() {
+				return iterator.next();
+			}
+			
+			public void close() { }
+		};
+	}
+}
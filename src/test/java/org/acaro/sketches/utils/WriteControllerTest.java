@@ -0,0 +1,242 @@
+/* Copyright 2011 Claudio Martella
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package org.acaro.sketches.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.acaro.sketches.utils.WriteController.Stall;
+import org.junit.Test;
+
+/**
+ * With the defaults: writes delayed from 2 immutable Memstores, stopped from 4.
+ * 
+ * @author Claudio Martella
+ *
+ */
+
+public class WriteControllerTest {
+
+	private final ManualExecutor executor = new ManualExecutor();
+	private final WriteController controller = new WriteController(Configuration.getConf(), executor);
+	private final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+	
+	@Test
+	public void testStallFollowsTheImmutableMemstores() {
+		assertEquals(Stall.NONE, controller.getStall());
+		controller.update(2);
+		assertEquals(Stall.DELAYED, controller.getStall());
+		controller.update(4);
+		assertEquals(Stall.STOPPED, controller.getStall());
+		controller.update(1);
+		assertEquals(Stall.NONE, controller.getStall());
+	}
+	
+	@Test
+	public void testDelayedWritesGoOn() 
+	throws IOException {
+		
+		controller.update(3);
+		controller.await();
+		
+		assertEquals(1, controller.getDelayedWrites());
+		assertEquals(0, controller.getStoppedWrites());
+	}
+	
+	@Test
+	public void testStoppedWritesWaitForAScribe() 
+	throws Exception {
+		
+		controller.update(4);
+		
+		final CountDownLatch returned = new CountDownLatch(1);
+		new Thread() {
+			public void run() {
+				try {
+					controller.await();
+					returned.countDown();
+				} catch (IOException e) { }
+			}
+		}.start();
+		
+		assertFalse(returned.await(200, TimeUnit.MILLISECONDS));
+		controller.update(3);
+		assertTrue(returned.await(10, TimeUnit.SECONDS));
+		assertEquals(1, controller.getStoppedWrites());
+	}
+	
+	@Test
+	public void testReleaseLetsEverythingGo() 
+	throws IOException {
+		
+		controller.update(4);
+		controller.release();
+		assertEquals(Stall.NONE, controller.getStall());
+		
+		controller.update(10);
+		assertEquals(Stall.NONE, controller.getStall());
+		controller.await();
+	}
+	
+	@Test
+	public void testNothingIsDeferredUnlessStopped() 
+	throws IOException {
+		
+		assertFalse(controller.defer(write(1)));
+		controller.update(3);
+		assertFalse(controller.defer(write(2)));
+		
+		assertEquals(0, controller.getDeferredWrites());
+		assertTrue(executor.isEmpty());
+		assertTrue(written.isEmpty());
+	}
+	
+	@Test
+	public void testDeferredWritesRunInOrderAndNewOnesQueueBehind() 
+	throws IOException {
+		
+		controller.update(4);
+		for (int i = 0; i < 3; i++)
+			assertTrue(controller.defer(write(i)));
+		assertEquals(3, controller.getDeferredWrites());
+		assertTrue(executor.isEmpty());
+		
+		// one task drains them all
+		controller.update(3);
+		assertEquals(1, executor.size());
+		
+		// the writes can go, but not before the queued ones
+		assertTrue(controller.defer(write(3)));
+		assertEquals(1, executor.size());
+		
+		executor.runAll();
+		assertEquals(list(0, 1, 2, 3), written);
+		assertEquals(0, controller.getDeferredWrites());
+		assertFalse(controller.defer(write(4)));
+	}
+	
+	@Test
+	public void testDrainingStopsWhenTheWritesStopAgain() 
+	throws IOException {
+		
+		controller.update(4);
+		controller.defer(write(0));
+		controller.defer(write(1));
+		controller.update(3);
+		controller.update(4);
+		
+		executor.runAll();
+		assertTrue(written.isEmpty());
+		assertEquals(2, controller.getDeferredWrites());
+		
+		controller.update(3);
+		executor.runAll();
+		assertEquals(list(0, 1), written);
+	}
+	
+	@Test(expected = IOException.class)
+	public void testTooManyDeferredWrites() 
+	throws IOException {
+		
+		controller.update(4);
+		for (int i = 0; i <= 10000; i++)
+			controller.defer(write(i));
+	}
+	
+	@Test
+	public void testOrderOnAThreadPool() 
+	throws Exception {
+		
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		WriteController controller = new WriteController(Configuration.getConf(), pool);
+		
+		controller.update(4);
+		for (int i = 0; i < 1000; i++)
+			controller.defer(write(i));
+		controller.update(0);
+		
+		// like Sketches, a write that isn't deferred goes right away
+		for (int i = 1000; i < 2000; i++)
+			if (!controller.defer(write(i)))
+				write(i).run();
+		
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+		
+		assertEquals(2000, written.size());
+		for (int i = 0; i < 2000; i++)
+			assertEquals(i, (int) written.get(i));
+	}
+	
+	private Runnable write(final int i) {
+		return new Runnable() {
+			public void run() {
+				written.add(i);
+			}
+		};
+	}
+	
+	private static List<Integer> list(Integer... values) {
+		List<Integer> list = new ArrayList<Integer>();
+		Collections.addAll(list, values);
+		
+		return list;
+	}
+	
+	/*
+	 * Runs the tasks when it's told to.
+	 */
+	private static class ManualExecutor 
+	implements Executor {
+		
+		private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+		
+		public synchronized void execute(Runnable task) {
+			tasks.add(task);
+		}
+		
+		public synchronized int size() {
+			return tasks.size();
+		}
+		
+		public synchronized boolean isEmpty() {
+			return tasks.isEmpty();
+		}
+		
+		public void runAll() {
+			Runnable task;
+			while ((task = poll()) != null)
+				task.run();
+		}
+		
+		private synchronized Runnable poll() {
+			return tasks.poll();
+		}
+	}
+}